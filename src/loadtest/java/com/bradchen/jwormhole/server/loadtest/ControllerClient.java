@@ -0,0 +1,89 @@
+package com.bradchen.jwormhole.server.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Send commands to the controller the same way jWormhole client does: one command per connection.
+ */
+final class ControllerClient {
+
+	private final int port;
+
+	ControllerClient(int port) {
+		this.port = port;
+	}
+
+	String send(String command) throws IOException {
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+			writer.write(command + "\n");
+			writer.flush();
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+				socket.getInputStream(), StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (sb.length() > 0) {
+					sb.append("\n");
+				}
+				sb.append(line);
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Create a host with a generated name. Like the other commands, hosts are identified by their
+	 * domain name afterwards.
+	 *
+	 * @return domain name and port of the new host
+	 */
+	String[] createHost() throws IOException {
+		String response = send("createHost");
+		String[] tokens = response.split(",");
+		if (tokens.length != 3) {
+			throw new IOException("Unable to create host: " + response);
+		}
+		return new String[] { tokens[0], tokens[2] };
+	}
+
+	/**
+	 * Add an upstream port to a host.
+	 *
+	 * @return the new port
+	 */
+	int addHostPort(String domainName) throws IOException {
+		String response = send("addHostPort " + domainName);
+		String[] tokens = response.split(",");
+		if (tokens.length != 3) {
+			throw new IOException("Unable to add host port: " + response);
+		}
+		return Integer.parseInt(tokens[2]);
+	}
+
+	/**
+	 * Wait until the proxy can reach the original port of a host.
+	 */
+	void waitHostReady(String domainName) throws IOException {
+		String response = send("waitHostReady " + domainName);
+		if (!"ready".equals(response)) {
+			throw new IOException("Host is not ready: " + response);
+		}
+	}
+
+	void keepHostAlive(String domainName) throws IOException {
+		send("keepHostAlive " + domainName);
+	}
+
+	void removeHost(String domainName) throws IOException {
+		send("removeHost " + domainName);
+	}
+
+}
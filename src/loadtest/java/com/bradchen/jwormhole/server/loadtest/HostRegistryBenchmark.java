@@ -0,0 +1,146 @@
+package com.bradchen.jwormhole.server.loadtest;
+
+import com.bradchen.jwormhole.server.CompactHostRegistry;
+import com.bradchen.jwormhole.server.Host;
+import com.bradchen.jwormhole.server.HostRegistry;
+import com.bradchen.jwormhole.server.MapHostRegistry;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Memory and lookup benchmark of the host registry backends. Registries are filled directly, since
+ * a single {@code HostManager} is limited to the 64K port space.
+ *
+ * <p>Run with: {@code mvn -P loadtest test-compile exec:java
+ * -Dloadtest.mainClass=com.bradchen.jwormhole.server.loadtest.HostRegistryBenchmark
+ * -Dloadtest.args="-hosts 1000000 -lookups 10000000"}
+ */
+public final class HostRegistryBenchmark {
+
+	private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789";
+	private static final int NAME_LENGTH = 8;
+	private static final long TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+	private final int hostCount;
+	private final int lookupCount;
+	private final String[] names;
+	private final String[] missingNames;
+
+	private HostRegistryBenchmark(int hostCount, int lookupCount) {
+		this.hostCount = hostCount;
+		this.lookupCount = lookupCount;
+		Random random = new Random(42);
+		Set<String> uniqueNames = new HashSet<>();
+		while (uniqueNames.size() < hostCount) {
+			uniqueNames.add(randomName(random, ""));
+		}
+		names = uniqueNames.toArray(new String[hostCount]);
+		missingNames = new String[hostCount];
+		for (int i = 0; i < hostCount; i++) {
+			// one extra character, so these can never be in the registry
+			missingNames[i] = randomName(random, "x");
+		}
+	}
+
+	private static String randomName(Random random, String suffix) {
+		char[] chars = new char[NAME_LENGTH];
+		for (int i = 0; i < NAME_LENGTH; i++) {
+			chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+		}
+		return new String(chars) + suffix;
+	}
+
+	public static void main(String[] args) {
+		int hostCount = 1000000;
+		int lookupCount = 10000000;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if ("-hosts".equals(args[i])) {
+				hostCount = Integer.parseInt(args[i + 1]);
+			} else if ("-lookups".equals(args[i])) {
+				lookupCount = Integer.parseInt(args[i + 1]);
+			} else {
+				throw new IllegalArgumentException("Invalid option: " + args[i]);
+			}
+		}
+
+		HostRegistryBenchmark benchmark = new HostRegistryBenchmark(hostCount, lookupCount);
+		System.out.printf(Locale.ROOT, "%-16s %12s %12s %12s %12s %12s %12s%n", "registry",
+			"heap MB", "direct MB", "insert ns", "hit ns", "miss ns", "gc scan ms");
+		for (int round = 0; round < 2; round++) {
+			// the first round warms up the JIT
+			benchmark.run("map", MapHostRegistry::new);
+			benchmark.run("compact", () -> new CompactHostRegistry(1024, false));
+			benchmark.run("compact-offheap", () -> new CompactHostRegistry(1024, true));
+		}
+	}
+
+	private void run(String label, Supplier<HostRegistry> factory) {
+		long heapBefore = usedHeap();
+		long directBefore = usedDirectMemory();
+
+		HostRegistry registry = factory.get();
+		long start = System.nanoTime();
+		for (int i = 0; i < hostCount; i++) {
+			// copy the name, as a registry normally owns the name it is given
+			registry.add(new String(names[i]), i & 0xffff, TIMEOUT);
+		}
+		long insertTime = System.nanoTime() - start;
+
+		long heap = usedHeap() - heapBefore;
+		long direct = usedDirectMemory() - directBefore;
+
+		Random random = new Random(7);
+		long checksum = 0;
+		start = System.nanoTime();
+		for (int i = 0; i < lookupCount; i++) {
+			Host host = registry.get(names[random.nextInt(hostCount)]);
+			checksum += host.getPort();
+		}
+		long hitTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < lookupCount; i++) {
+			if (registry.get(missingNames[random.nextInt(hostCount)]) != null) {
+				checksum++;
+			}
+		}
+		long missTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		registry.removeExpired(host -> false, host -> { });
+		long scanTime = System.nanoTime() - start;
+
+		System.out.printf(Locale.ROOT, "%-16s %12.1f %12.1f %12.1f %12.1f %12.1f %12.1f%n", label,
+			heap / 1048576.0, direct / 1048576.0, insertTime / (double) hostCount,
+			hitTime / (double) lookupCount, missTime / (double) lookupCount,
+			scanTime / 1000000.0);
+		if ((checksum == 42) || (registry.size() != hostCount)) {
+			System.out.println("unexpected registry state");
+		}
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static long usedDirectMemory() {
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if ("direct".equals(pool.getName())) {
+				return pool.getMemoryUsed();
+			}
+		}
+		return 0;
+	}
+
+}
@@ -0,0 +1,525 @@
+package com.bradchen.jwormhole.server.loadtest;
+
+import com.bradchen.jwormhole.server.LatencyHistogram;
+import com.bradchen.jwormhole.server.ProxyServlet;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.net.BindException;
+import java.net.ServerSocket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load test. Starts the proxy servlet in an embedded Jetty together with stub upstreams
+ * registered through the controller, drives a mix of small and large GET/POST requests across the
+ * hosts while hosts are created and removed, and reports throughput, latency percentiles and
+ * allocation rate. Results can be written to a file and compared against an earlier run.
+ *
+ * <p>Options (all optional): {@code -hosts 20 -clients 32 -duration 30 -warmup 5
+ * -largeRatio 0.1 -postRatio 0.2 -smallSize 1024 -largeSize 1048576 -churnRate 2 -portsPerHost 1
+ * -responseBuffering false -nodeBandwidth 0 -upstreamHttp2 false -h2cRatio 0
+ * -output results.properties -baseline baseline.properties}
+ *
+ * <p>{@code -h2cRatio} is the fraction of hosts whose stub upstreams also speak cleartext HTTP/2;
+ * the others speak HTTP/1.1 only, which exercises the fallback when {@code -upstreamHttp2} is on.
+ */
+public final class LoadTestHarness {
+
+	private static final String DOMAIN_NAME_SUFFIX = ".loadtest.local";
+	private static final String PROXY_THREAD_NAME = "proxy";
+	private static final int HOST_PORT_RANGE_START = 20000;
+	private static final int HOST_PORT_RANGE_END = 30000;
+	private static final long KEEP_ALIVE_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+
+	private final Map<String, String> options;
+	private final byte[] smallBody;
+	private final byte[] largeBody;
+	private final List<TestHost> activeHosts;
+	private volatile TestHost[] activeHostArray;
+	private final Deque<TestHost> churnedHosts;
+	private final ExecutorService upstreamExecutor;
+	private ControllerClient controllerClient;
+	private Server server;
+	private int proxyPort;
+	private volatile boolean running;
+	private volatile boolean measuring;
+
+	private final LatencyHistogram latencies;
+	private final AtomicLong requests;
+	private final AtomicLong bytesReceived;
+	private final AtomicLong errors;
+	private final AtomicLong notFound;
+	private final AtomicLong hostsCreated;
+	private final AtomicLong hostsRemoved;
+
+	private LoadTestHarness(Map<String, String> options) {
+		this.options = options;
+		smallBody = new byte[getInt("smallSize")];
+		largeBody = new byte[getInt("largeSize")];
+		ThreadLocalRandom.current().nextBytes(smallBody);
+		ThreadLocalRandom.current().nextBytes(largeBody);
+		activeHosts = new ArrayList<>();
+		churnedHosts = new ArrayDeque<>();
+		upstreamExecutor = Executors.newCachedThreadPool();
+		latencies = new LatencyHistogram();
+		requests = new AtomicLong();
+		bytesReceived = new AtomicLong();
+		errors = new AtomicLong();
+		notFound = new AtomicLong();
+		hostsCreated = new AtomicLong();
+		hostsRemoved = new AtomicLong();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		options.put("hosts", "20");
+		options.put("clients", "32");
+		options.put("duration", "30");
+		options.put("warmup", "5");
+		options.put("largeRatio", "0.1");
+		options.put("postRatio", "0.2");
+		options.put("smallSize", "1024");
+		options.put("largeSize", "1048576");
+		options.put("churnRate", "2");
+		options.put("portsPerHost", "1");
+		options.put("responseBuffering", "false");
+		options.put("nodeBandwidth", "0");
+		options.put("upstreamHttp2", "false");
+		options.put("h2cRatio", "0");
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (!args[i].startsWith("-")) {
+				throw new IllegalArgumentException("Invalid option: " + args[i]);
+			}
+			options.put(args[i].substring(1), args[i + 1]);
+		}
+
+		LoadTestHarness loadTest = new LoadTestHarness(options);
+		int status = 1;
+		try {
+			loadTest.start();
+			Properties results = loadTest.run();
+			report(results, options.get("baseline"));
+			if (options.containsKey("output")) {
+				try (OutputStream outputStream = new FileOutputStream(options.get("output"))) {
+					results.store(outputStream, "jWormhole load test");
+				}
+			}
+			status = 0;
+		} catch (Exception exception) {
+			exception.printStackTrace();
+		} finally {
+			loadTest.stop();
+			// the proxy's controller thread is not a daemon
+			System.exit(status);
+		}
+	}
+
+	private int getInt(String key) {
+		return Integer.parseInt(options.get(key));
+	}
+
+	private double getDouble(String key) {
+		return Double.parseDouble(options.get(key));
+	}
+
+	private void start() throws Exception {
+		int controllerPort = findFreePort();
+		File settingsFile = File.createTempFile("jwormhole-loadtest", ".properties");
+		settingsFile.deleteOnExit();
+		Properties settings = new Properties();
+		settings.setProperty("jwormhole.server.domainNamePrefix", "");
+		settings.setProperty("jwormhole.server.domainNameSuffix", DOMAIN_NAME_SUFFIX);
+		settings.setProperty("jwormhole.server.controllerPort", Integer.toString(controllerPort));
+		settings.setProperty("jwormhole.server.hostPortRangeStart",
+			Integer.toString(HOST_PORT_RANGE_START));
+		settings.setProperty("jwormhole.server.hostPortRangeEnd",
+			Integer.toString(HOST_PORT_RANGE_END));
+		settings.setProperty("jwormhole.server.responseBufferingEnabled",
+			options.get("responseBuffering"));
+		settings.setProperty("jwormhole.server.nodeBandwidth", options.get("nodeBandwidth"));
+		settings.setProperty("jwormhole.server.upstreamHttp2Enabled", options.get("upstreamHttp2"));
+		try (OutputStream outputStream = new FileOutputStream(settingsFile)) {
+			settings.store(outputStream, null);
+		}
+		System.setProperty("jwormhole.server.settingsFile", settingsFile.getAbsolutePath());
+
+		QueuedThreadPool threadPool = new QueuedThreadPool(Math.max(200, getInt("clients") * 2));
+		threadPool.setName(PROXY_THREAD_NAME);
+		server = new Server(threadPool);
+		ServerConnector connector = new ServerConnector(server);
+		connector.setHost("127.0.0.1");
+		server.addConnector(connector);
+		ServletContextHandler context = new ServletContextHandler();
+		ServletHolder holder = new ServletHolder(new ProxyServlet());
+		holder.setInitOrder(1);
+		context.addServlet(holder, "/*");
+		server.setHandler(context);
+		server.start();
+		proxyPort = connector.getLocalPort();
+
+		controllerClient = new ControllerClient(controllerPort);
+		for (int i = 0; i < getInt("hosts"); i++) {
+			addActiveHost(createHost());
+		}
+		System.out.printf("Proxy on port %d with %d hosts%n", proxyPort, activeHosts.size());
+	}
+
+	private static int findFreePort() throws IOException {
+		while (true) {
+			try (ServerSocket socket = new ServerSocket(0)) {
+				int port = socket.getLocalPort();
+				if ((port < HOST_PORT_RANGE_START) || (port > HOST_PORT_RANGE_END)) {
+					return port;
+				}
+			}
+		}
+	}
+
+	private TestHost createHost() throws IOException {
+		while (true) {
+			String[] domainAndPort = controllerClient.createHost();
+			boolean h2c = ThreadLocalRandom.current().nextDouble() < getDouble("h2cRatio");
+			try {
+				List<StubUpstream> stubs = new ArrayList<>();
+				stubs.add(new StubUpstream(Integer.parseInt(domainAndPort[1]), smallBody, largeBody,
+					upstreamExecutor, h2c));
+				for (int i = 1; i < getInt("portsPerHost"); i++) {
+					stubs.add(createExtraStub(domainAndPort[0], h2c));
+				}
+				// like a real client, wait for the proxy to have warm connections to the tunnel
+				controllerClient.waitHostReady(domainAndPort[0]);
+				hostsCreated.incrementAndGet();
+				return new TestHost(domainAndPort[0], stubs);
+			} catch (BindException exception) {
+				// port taken by something outside the proxy; try another host
+				controllerClient.removeHost(domainAndPort[0]);
+			}
+		}
+	}
+
+	private StubUpstream createExtraStub(String domainName, boolean h2c) throws IOException {
+		while (true) {
+			int port = controllerClient.addHostPort(domainName);
+			try {
+				return new StubUpstream(port, smallBody, largeBody, upstreamExecutor, h2c);
+			} catch (BindException exception) {
+				// port taken by something outside the proxy; leaving it in the pool would only
+				// exercise ejection, so drop it and try another one
+				controllerClient.send("removeHostPort " + domainName + " " + port);
+			}
+		}
+	}
+
+	private synchronized void addActiveHost(TestHost host) {
+		activeHosts.add(host);
+		activeHostArray = activeHosts.toArray(new TestHost[activeHosts.size()]);
+	}
+
+	private void removeHost(TestHost host) throws IOException {
+		synchronized (this) {
+			activeHosts.remove(host);
+			activeHostArray = activeHosts.toArray(new TestHost[activeHosts.size()]);
+		}
+		controllerClient.removeHost(host.domainName);
+		host.stop();
+		hostsRemoved.incrementAndGet();
+	}
+
+	private Properties run() throws Exception {
+		running = true;
+		int clients = getInt("clients");
+		PoolingHttpClientConnectionManager connectionManager =
+			new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(clients);
+		connectionManager.setDefaultMaxPerRoute(clients);
+		CloseableHttpClient httpClient = HttpClients.custom()
+			.setConnectionManager(connectionManager)
+			.build();
+
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < clients; i++) {
+			threads.add(startThread("client-" + i, () -> runClient(httpClient)));
+		}
+		threads.add(startThread("keep-alive", this::runKeepAlive));
+		if (getDouble("churnRate") > 0) {
+			threads.add(startThread("churn", this::runChurn));
+		}
+
+		Thread.sleep(TimeUnit.SECONDS.toMillis(getInt("warmup")));
+		latencies.reset();
+		requests.set(0);
+		bytesReceived.set(0);
+		errors.set(0);
+		notFound.set(0);
+		hostsCreated.set(0);
+		hostsRemoved.set(0);
+		AllocationSnapshot allocationBefore = new AllocationSnapshot();
+		long start = System.nanoTime();
+		measuring = true;
+
+		Thread.sleep(TimeUnit.SECONDS.toMillis(getInt("duration")));
+		measuring = false;
+		double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+		AllocationSnapshot allocationAfter = new AllocationSnapshot();
+		running = false;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		httpClient.close();
+
+		Properties results = new Properties();
+		long requestCount = requests.get();
+		putResult(results, "requests", requestCount);
+		putResult(results, "throughput.rps", requestCount / seconds);
+		putResult(results, "throughput.mbps", bytesReceived.get() / seconds / (1024 * 1024));
+		putResult(results, "latency.p50.ms", latencies.getPercentile(0.5) / 1000.0);
+		putResult(results, "latency.p99.ms", latencies.getPercentile(0.99) / 1000.0);
+		putResult(results, "latency.p999.ms", latencies.getPercentile(0.999) / 1000.0);
+		putResult(results, "errors", errors.get());
+		putResult(results, "notFound", notFound.get());
+		putResult(results, "hosts.created", hostsCreated.get());
+		putResult(results, "hosts.removed", hostsRemoved.get());
+		long allocated = allocationAfter.allBytes - allocationBefore.allBytes;
+		long proxyAllocated = allocationAfter.proxyBytes - allocationBefore.proxyBytes;
+		putResult(results, "allocation.mbps", allocated / seconds / (1024 * 1024));
+		putResult(results, "allocation.proxy.mbps", proxyAllocated / seconds / (1024 * 1024));
+		putResult(results, "allocation.proxy.bytesPerRequest",
+			(requestCount == 0) ? 0 : proxyAllocated / requestCount);
+		putResult(results, "gc.count", allocationAfter.gcCount - allocationBefore.gcCount);
+		putResult(results, "gc.ms", allocationAfter.gcTime - allocationBefore.gcTime);
+		return results;
+	}
+
+	private static Thread startThread(String name, ThrowingRunnable runnable) {
+		Thread thread = new Thread(() -> {
+			try {
+				runnable.run();
+			} catch (Exception exception) {
+				exception.printStackTrace();
+			}
+		}, name);
+		thread.start();
+		return thread;
+	}
+
+	private void runClient(CloseableHttpClient httpClient) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		double largeRatio = getDouble("largeRatio");
+		double postRatio = getDouble("postRatio");
+		while (running) {
+			TestHost[] hosts = activeHostArray;
+			TestHost host = hosts[random.nextInt(hosts.length)];
+			String path = (random.nextDouble() < largeRatio) ? "/large" : "/small";
+			String uri = "http://127.0.0.1:" + proxyPort + path + "?r=" + random.nextInt();
+			HttpUriRequest request;
+			if (random.nextDouble() < postRatio) {
+				HttpPost post = new HttpPost(uri);
+				post.setEntity(new ByteArrayEntity(path.equals("/large") ? largeBody : smallBody));
+				request = post;
+			} else {
+				request = new HttpGet(uri);
+			}
+			request.setHeader("Host", host.domainName);
+
+			long start = System.nanoTime();
+			int status;
+			long length;
+			try {
+				HttpResponse response = httpClient.execute(request);
+				status = response.getStatusLine().getStatusCode();
+				length = EntityUtils.toByteArray(response.getEntity()).length;
+			} catch (IOException exception) {
+				status = -1;
+				length = 0;
+			}
+			long duration = System.nanoTime() - start;
+			if (!measuring) {
+				continue;
+			}
+
+			if (status == 200) {
+				latencies.record(duration);
+				requests.incrementAndGet();
+				bytesReceived.addAndGet(length);
+			} else if (status == 404) {
+				// the host was removed by the churn thread while the request was in flight
+				notFound.incrementAndGet();
+			} else {
+				errors.incrementAndGet();
+			}
+		}
+	}
+
+	private void runKeepAlive() throws Exception {
+		while (running) {
+			for (TestHost host : activeHostArray) {
+				controllerClient.keepHostAlive(host.domainName);
+			}
+			sleepWhileRunning(KEEP_ALIVE_INTERVAL);
+		}
+	}
+
+	private void runChurn() throws Exception {
+		long interval = (long) (TimeUnit.SECONDS.toMillis(1) / getDouble("churnRate"));
+		int churnedHostCount = Math.max(1, getInt("hosts") / 4);
+		while (running) {
+			TestHost host = createHost();
+			addActiveHost(host);
+			churnedHosts.addLast(host);
+			if (churnedHosts.size() > churnedHostCount) {
+				removeHost(churnedHosts.removeFirst());
+			}
+			sleepWhileRunning(interval);
+		}
+	}
+
+	private void sleepWhileRunning(long millis) throws InterruptedException {
+		long end = System.currentTimeMillis() + millis;
+		while (running && (System.currentTimeMillis() < end)) {
+			Thread.sleep(Math.min(100, millis));
+		}
+	}
+
+	private void stop() throws Exception {
+		running = false;
+		if (server != null) {
+			server.stop();
+		}
+		if (activeHostArray != null) {
+			for (TestHost host : activeHostArray) {
+				host.stop();
+			}
+		}
+		upstreamExecutor.shutdownNow();
+	}
+
+	private static void putResult(Properties results, String key, double value) {
+		results.setProperty(key, String.format(Locale.ROOT, "%.3f", value));
+	}
+
+	private static void report(Properties results, String baselineFile) throws IOException {
+		Properties baseline = null;
+		if (baselineFile != null) {
+			baseline = new Properties();
+			try (InputStream inputStream = new FileInputStream(baselineFile)) {
+				baseline.load(inputStream);
+			}
+		}
+
+		List<String> keys = new ArrayList<>(results.stringPropertyNames());
+		keys.sort(null);
+		for (String key : keys) {
+			double value = Double.parseDouble(results.getProperty(key));
+			if ((baseline == null) || !baseline.containsKey(key)) {
+				System.out.printf(Locale.ROOT, "%-36s %14.3f%n", key, value);
+				continue;
+			}
+
+			double baselineValue = Double.parseDouble(baseline.getProperty(key));
+			double change = (baselineValue == 0) ? 0 : (value - baselineValue) / baselineValue;
+			System.out.printf(Locale.ROOT, "%-36s %14.3f %14.3f %+8.1f%%%n", key, value,
+				baselineValue, change * 100);
+		}
+	}
+
+	private static final class TestHost {
+
+		private final String domainName;
+		private final List<StubUpstream> stubs;
+
+		private TestHost(String domainName, List<StubUpstream> stubs) {
+			this.domainName = domainName;
+			this.stubs = stubs;
+		}
+
+		private void stop() {
+			stubs.forEach(StubUpstream::stop);
+		}
+
+	}
+
+	/**
+	 * Bytes allocated so far by all live threads and by the proxy's request threads, plus GC
+	 * totals.
+	 */
+	private static final class AllocationSnapshot {
+
+		private final long allBytes;
+		private final long proxyBytes;
+		private final long gcCount;
+		private final long gcTime;
+
+		private AllocationSnapshot() {
+			com.sun.management.ThreadMXBean threadBean =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			long[] threadIds = threadBean.getAllThreadIds();
+			long[] allocated = threadBean.getThreadAllocatedBytes(threadIds);
+			ThreadInfo[] threadInfos = threadBean.getThreadInfo(threadIds);
+			long all = 0;
+			long proxy = 0;
+			for (int i = 0; i < threadIds.length; i++) {
+				if (allocated[i] < 0) {
+					continue;
+				}
+				all += allocated[i];
+				if ((threadInfos[i] != null) &&
+						threadInfos[i].getThreadName().startsWith(PROXY_THREAD_NAME)) {
+					proxy += allocated[i];
+				}
+			}
+			allBytes = all;
+			proxyBytes = proxy;
+
+			long count = 0;
+			long time = 0;
+			for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+				count += Math.max(0, gcBean.getCollectionCount());
+				time += Math.max(0, gcBean.getCollectionTime());
+			}
+			gcCount = count;
+			gcTime = time;
+		}
+
+	}
+
+	@FunctionalInterface
+	private interface ThrowingRunnable {
+
+		void run() throws Exception;
+
+	}
+
+}
@@ -0,0 +1,138 @@
+package com.bradchen.jwormhole.server.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Stands in for a developer's web server at the far end of a tunnel. {@code /small} and
+ * {@code /large} return bodies of the configured sizes; a POST to either path is drained and
+ * answered with the small body. An h2c stub also speaks cleartext HTTP/2 with prior knowledge,
+ * next to HTTP/1.1.
+ */
+final class StubUpstream {
+
+	private static final String CONTENT_TYPE = "application/octet-stream";
+
+	private final HttpServer server;
+	private final Server h2cServer;
+	private final byte[] smallBody;
+	private final byte[] largeBody;
+
+	StubUpstream(int port, byte[] smallBody, byte[] largeBody, ExecutorService executor,
+				 boolean h2c) throws IOException {
+		this.smallBody = smallBody;
+		this.largeBody = largeBody;
+		if (h2c) {
+			server = null;
+			h2cServer = startH2cServer(port);
+		} else {
+			h2cServer = null;
+			server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+				port), 128);
+			server.createContext("/", this::handle);
+			server.setExecutor(executor);
+			server.start();
+		}
+	}
+
+	private Server startH2cServer(int port) throws IOException {
+		Server jetty = new Server(new QueuedThreadPool(64, 2));
+		HttpConfiguration configuration = new HttpConfiguration();
+		ServerConnector connector = new ServerConnector(jetty, 1, 1,
+			new HttpConnectionFactory(configuration),
+			new HTTP2CServerConnectionFactory(configuration));
+		connector.setHost(InetAddress.getLoopbackAddress().getHostAddress());
+		connector.setPort(port);
+		jetty.addConnector(connector);
+		jetty.setHandler(new AbstractHandler() {
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request,
+							   HttpServletResponse response) throws IOException {
+				baseRequest.setHandled(true);
+				byte[] body = getBody(request.getRequestURI(), request.getMethod(),
+					request.getInputStream());
+				response.setContentType(CONTENT_TYPE);
+				response.setContentLength(body.length);
+				response.getOutputStream().write(body);
+			}
+		});
+		try {
+			jetty.start();
+		} catch (IOException exception) {
+			stopQuietly(jetty);
+			// Jetty wraps the bind failure that the harness looks for
+			if (exception.getCause() instanceof BindException) {
+				throw (BindException) exception.getCause();
+			}
+			throw exception;
+		} catch (Exception exception) {
+			stopQuietly(jetty);
+			throw new IOException(exception);
+		}
+		return jetty;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			byte[] body = getBody(exchange.getRequestURI().getPath(),
+				exchange.getRequestMethod(), exchange.getRequestBody());
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream outputStream = exchange.getResponseBody()) {
+				outputStream.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private byte[] getBody(String path, String method, InputStream requestBody)
+			throws IOException {
+		if ("POST".equals(method)) {
+			drain(requestBody);
+			return smallBody;
+		}
+		return path.startsWith("/large") ? largeBody : smallBody;
+	}
+
+	private static void drain(InputStream inputStream) throws IOException {
+		byte[] buffer = new byte[8192];
+		while (inputStream.read(buffer) != -1) {
+			// discard
+		}
+	}
+
+	private static void stopQuietly(Server jetty) {
+		try {
+			jetty.stop();
+		} catch (Exception ignored) {
+		}
+	}
+
+	void stop() {
+		if (server != null) {
+			server.stop(0);
+		} else {
+			stopQuietly(h2cServer);
+		}
+	}
+
+}
@@ -0,0 +1,311 @@
+package com.bradchen.jwormhole.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous access log. Request threads claim a preallocated record in a lock-free ring buffer;
+ * a background thread formats the records in batches and appends them to rotating files. When the
+ * writer falls behind, records are dropped and counted instead of blocking the request thread.
+ * Each line holds the start time, host, method, path, status, bytes sent and duration in microseconds.
+ */
+public class AccessLog {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AccessLog.class);
+	private static final String FILE_NAME = "access.log";
+	private static final int MAX_BATCH_SIZE = 1024;
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final Record[] records;
+	private final AtomicLongArray published;
+	private final int mask;
+	private final AtomicLong tail;
+	private final LongAdder dropped;
+	private final LogFile logFile;
+	private final Thread writerThread;
+	private volatile long head;
+	private volatile boolean running;
+
+	public AccessLog(Settings settings) throws IOException {
+		int capacity = Integer.highestOneBit(settings.getAccessLogBufferSize());
+		records = new Record[capacity];
+		for (int i = 0; i < capacity; i++) {
+			records[i] = new Record();
+		}
+		published = new AtomicLongArray(capacity);
+		mask = capacity - 1;
+		tail = new AtomicLong();
+		dropped = new LongAdder();
+		logFile = new LogFile(getDirectory(settings), settings.getAccessLogMaxFileSize() * 1024L *
+			1024L, settings.getAccessLogMaxFiles(), settings.isAccessLogMemoryMapped());
+		running = true;
+		writerThread = new Thread(this::drain, "access-log-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	private static File getDirectory(Settings settings) {
+		if (settings.getAccessLogDirectory().isEmpty()) {
+			return new File(System.getenv("HOME") + "/.jwormhole/logs");
+		}
+		return new File(settings.getAccessLogDirectory());
+	}
+
+	/**
+	 * Record a finished request. Never blocks; the record is dropped if the buffer is full.
+	 */
+	public void log(String host, String method, String path, int status, long bytes,
+					long startTime, long duration) {
+		long sequence;
+		do {
+			sequence = tail.get();
+			if (sequence - head >= records.length) {
+				dropped.increment();
+				return;
+			}
+		} while (!tail.compareAndSet(sequence, sequence + 1));
+
+		int index = (int) (sequence & mask);
+		Record record = records[index];
+		record.host = host;
+		record.method = method;
+		record.path = path;
+		record.status = status;
+		record.bytes = bytes;
+		record.startTime = startTime;
+		record.duration = duration;
+		published.lazySet(index, sequence + 1);
+	}
+
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	private void drain() {
+		StringBuilder sb = new StringBuilder(MAX_BATCH_SIZE * 128);
+		DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+		long reportedDropped = 0;
+		while (running || (head != tail.get())) {
+			long position = head;
+			int count = 0;
+			while (count < MAX_BATCH_SIZE) {
+				int index = (int) (position & mask);
+				if (published.get(index) != position + 1) {
+					break;
+				}
+				format(records[index], dateFormat, sb);
+				records[index].clear();
+				position++;
+				count++;
+			}
+			head = position;
+
+			long droppedCount = dropped.sum();
+			if (droppedCount != reportedDropped) {
+				sb.append("# dropped ").append(droppedCount - reportedDropped).append(" records\n");
+				reportedDropped = droppedCount;
+			}
+
+			if (sb.length() > 0) {
+				try {
+					logFile.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+				} catch (IOException exception) {
+					LOGGER.warn("Unable to write access log", exception);
+				}
+				sb.setLength(0);
+			}
+			if (count == 0) {
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+		}
+		logFile.close();
+	}
+
+	private static void format(Record record, DateFormat dateFormat, StringBuilder sb) {
+		sb.append(dateFormat.format(new Date(record.startTime)));
+		sb.append(' ').append(record.host);
+		sb.append(' ').append(record.method);
+		sb.append(" \"").append(record.path).append('"');
+		sb.append(' ').append(record.status);
+		sb.append(' ').append(record.bytes);
+		sb.append(' ').append(TimeUnit.NANOSECONDS.toMicros(record.duration));
+		sb.append('\n');
+	}
+
+	public void shutdown() {
+		running = false;
+		try {
+			writerThread.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Preallocated slot of the ring buffer.
+	 */
+	private static final class Record {
+
+		private String host;
+		private String method;
+		private String path;
+		private int status;
+		private long bytes;
+		private long startTime;
+		private long duration;
+
+		private void clear() {
+			host = null;
+			method = null;
+			path = null;
+		}
+
+	}
+
+	/**
+	 * Size-rotated log file, written either through a file channel or memory-mapped regions.
+	 */
+	private static final class LogFile {
+
+		private static final int MAPPED_REGION_SIZE = 1024 * 1024;
+
+		private final File directory;
+		private final long maxFileSize;
+		private final int maxFiles;
+		private final boolean memoryMapped;
+		private RandomAccessFile file;
+		private FileChannel channel;
+		private MappedByteBuffer region;
+		private long size;
+
+		private LogFile(File directory, long maxFileSize, int maxFiles, boolean memoryMapped)
+				throws IOException {
+			this.directory = directory;
+			this.maxFileSize = maxFileSize;
+			this.maxFiles = maxFiles;
+			this.memoryMapped = memoryMapped;
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Unable to create access log directory: " + directory);
+			}
+			open();
+		}
+
+		private void open() throws IOException {
+			file = new RandomAccessFile(new File(directory, FILE_NAME), "rw");
+			channel = file.getChannel();
+			size = trimTrailingZeros();
+			region = null;
+		}
+
+		/**
+		 * A memory-mapped log that was not closed cleanly, after a crash or a writer that did not
+		 * stop in time, still ends in the zero-filled rest of its last region. Cut it off, so that
+		 * new lines follow the last one written.
+		 *
+		 * @return size of the file without the trailing zeros
+		 */
+		private long trimTrailingZeros() throws IOException {
+			long end = channel.size();
+			ByteBuffer buffer = ByteBuffer.allocate(8192);
+			while (end > 0) {
+				int length = (int) Math.min(buffer.capacity(), end);
+				buffer.clear();
+				buffer.limit(length);
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, end - length + buffer.position()) < 0) {
+						throw new IOException("Access log shrank while being opened");
+					}
+				}
+				int last = length - 1;
+				while ((last >= 0) && (buffer.get(last) == 0)) {
+					last--;
+				}
+				if (last >= 0) {
+					end = end - length + last + 1;
+					break;
+				}
+				end -= length;
+			}
+			if (end < channel.size()) {
+				channel.truncate(end);
+			}
+			return end;
+		}
+
+		private void write(byte[] bytes) throws IOException {
+			if ((size > 0) && (size + bytes.length > maxFileSize)) {
+				rotate();
+			}
+			if (memoryMapped) {
+				writeMapped(bytes);
+			} else {
+				channel.write(ByteBuffer.wrap(bytes), size);
+			}
+			size += bytes.length;
+		}
+
+		private void writeMapped(byte[] bytes) throws IOException {
+			int offset = 0;
+			while (offset < bytes.length) {
+				if ((region == null) || !region.hasRemaining()) {
+					region = channel.map(FileChannel.MapMode.READ_WRITE, size + offset,
+						MAPPED_REGION_SIZE);
+				}
+				int length = Math.min(region.remaining(), bytes.length - offset);
+				region.put(bytes, offset, length);
+				offset += length;
+			}
+		}
+
+		private void rotate() throws IOException {
+			close();
+			for (int i = maxFiles - 1; i > 0; i--) {
+				File source = new File(directory, (i == 1) ? FILE_NAME : FILE_NAME + "." + (i - 1));
+				if (source.exists()) {
+					File target = new File(directory, FILE_NAME + "." + i);
+					if (target.exists() && !target.delete()) {
+						LOGGER.warn("Unable to delete old access log {}", target);
+					}
+					if (!source.renameTo(target)) {
+						LOGGER.warn("Unable to rotate access log {}", source);
+					}
+				}
+			}
+			if (maxFiles <= 1) {
+				new File(directory, FILE_NAME).delete();
+			}
+			open();
+		}
+
+		private void close() {
+			try {
+				// mapped regions extend past the data written; cut the file back to its real size
+				region = null;
+				if (memoryMapped) {
+					channel.truncate(size);
+				}
+				file.close();
+			} catch (IOException exception) {
+				LOGGER.warn("Unable to close access log", exception);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,333 @@
+package com.bradchen.jwormhole.server;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Host registry for very large numbers of hosts. Hosts are stored as fixed-size primitive records
+ * in an open-addressed (linear probing) table held in a single buffer, optionally off-heap, so
+ * there are no per-host objects and a probe touches one cache line. {@link Host} objects are only
+ * created as short-lived views when a host is looked up.
+ *
+ * <p>Each 32-byte slot holds the name hash, name length, port, create time, expiry and timeout
+ * (in seconds, relative to the creation of the registry) and up to 12 bytes of name. Host names
+ * are ASCII (see {@code Controller.HOST_NAME_PATTERN}); the rare longer name is kept in a side
+ * map.
+ */
+public final class CompactHostRegistry implements HostRegistry {
+
+	private static final int SLOT_SIZE = 32;
+	private static final int HASH_OFFSET = 0;
+	private static final int LENGTH_OFFSET = 4;
+	private static final int PORT_OFFSET = 6;
+	private static final int CREATE_TIME_OFFSET = 8;
+	private static final int EXPIRY_OFFSET = 12;
+	private static final int TIMEOUT_OFFSET = 16;
+	private static final int NAME_OFFSET = 20;
+	private static final int NAME_WIDTH = SLOT_SIZE - NAME_OFFSET;
+
+	private static final byte EMPTY = 0;
+	private static final byte LONG_NAME = -1;
+	private static final int MIN_CAPACITY = 64;
+	// largest power of two whose table size in bytes still fits in an int
+	private static final int MAX_CAPACITY = 1 << 25;
+	private static final double MAX_LOAD = 0.75;
+
+	private final boolean offHeap;
+	private final long baseTime;
+	private final Map<Integer, String> longNames;
+	private ByteBuffer table;
+	private int capacity;
+	private int mask;
+	private int size;
+
+	public CompactHostRegistry(int initialCapacity, boolean offHeap) {
+		this.offHeap = offHeap;
+		baseTime = System.currentTimeMillis();
+		longNames = new HashMap<>();
+		int tableCapacity = MIN_CAPACITY;
+		while ((tableCapacity < initialCapacity / MAX_LOAD) && (tableCapacity < MAX_CAPACITY)) {
+			tableCapacity <<= 1;
+		}
+		allocate(tableCapacity);
+	}
+
+	private void allocate(int newCapacity) {
+		capacity = newCapacity;
+		mask = newCapacity - 1;
+		int bytes = newCapacity * SLOT_SIZE;
+		table = (offHeap ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes))
+			.order(ByteOrder.nativeOrder());
+	}
+
+	private static int hash(String name) {
+		// String caches its hash code; spread the bits so that masking the low bits works well
+		int hash = name.hashCode();
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		return hash;
+	}
+
+	private int toSeconds(long time) {
+		return (int) TimeUnit.MILLISECONDS.toSeconds(time - baseTime);
+	}
+
+	private int toSecondsRoundedUp(long time) {
+		return (int) TimeUnit.MILLISECONDS.toSeconds(time - baseTime + 999);
+	}
+
+	private long toMillis(int seconds) {
+		return baseTime + TimeUnit.SECONDS.toMillis(seconds);
+	}
+
+	private byte length(int slot) {
+		return table.get(slot * SLOT_SIZE + LENGTH_OFFSET);
+	}
+
+	private int find(String name, int hash) {
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int offset = slot * SLOT_SIZE;
+			byte length = table.get(offset + LENGTH_OFFSET);
+			if (length == EMPTY) {
+				return -1;
+			}
+			if ((table.getInt(offset + HASH_OFFSET) == hash) && keyEquals(slot, length, name)) {
+				return slot;
+			}
+		}
+	}
+
+	private boolean keyEquals(int slot, byte length, String name) {
+		if (length == LONG_NAME) {
+			return name.equals(longNames.get(slot));
+		}
+		if (name.length() != length) {
+			return false;
+		}
+		int offset = slot * SLOT_SIZE + NAME_OFFSET;
+		for (int i = 0; i < length; i++) {
+			char c = name.charAt(i);
+			if ((c > 0x7f) || (table.get(offset + i) != (byte) c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String getName(int slot) {
+		byte length = length(slot);
+		if (length == LONG_NAME) {
+			return longNames.get(slot);
+		}
+		byte[] bytes = new byte[length];
+		int offset = slot * SLOT_SIZE + NAME_OFFSET;
+		for (int i = 0; i < length; i++) {
+			bytes[i] = table.get(offset + i);
+		}
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+	private Host view(int slot, String name) {
+		int offset = slot * SLOT_SIZE;
+		return new Host(name, table.getChar(offset + PORT_OFFSET),
+			toMillis(table.getInt(offset + CREATE_TIME_OFFSET)),
+			TimeUnit.SECONDS.toMillis(table.getInt(offset + TIMEOUT_OFFSET)),
+			toMillis(table.getInt(offset + EXPIRY_OFFSET)));
+	}
+
+	@Override
+	public Host get(String name) {
+		int slot = find(name, hash(name));
+		return (slot < 0) ? null : view(slot, name);
+	}
+
+	@Override
+	public boolean contains(String name) {
+		return find(name, hash(name)) >= 0;
+	}
+
+	@Override
+	public Host add(String name, int port, long timeout) {
+		if ((size + 1 > capacity * MAX_LOAD) && (capacity < MAX_CAPACITY)) {
+			grow();
+		}
+		if (size + 1 >= capacity) {
+			throw new IllegalStateException("Host registry is full.");
+		}
+
+		int hash = hash(name);
+		int slot = hash & mask;
+		while (length(slot) != EMPTY) {
+			slot = (slot + 1) & mask;
+		}
+
+		int offset = slot * SLOT_SIZE;
+		if (isInlineName(name)) {
+			for (int i = 0; i < name.length(); i++) {
+				table.put(offset + NAME_OFFSET + i, (byte) name.charAt(i));
+			}
+			table.put(offset + LENGTH_OFFSET, (byte) name.length());
+		} else {
+			longNames.put(slot, name);
+			table.put(offset + LENGTH_OFFSET, LONG_NAME);
+		}
+
+		long now = System.currentTimeMillis();
+		table.putInt(offset + HASH_OFFSET, hash);
+		table.putChar(offset + PORT_OFFSET, (char) port);
+		table.putInt(offset + CREATE_TIME_OFFSET, toSeconds(now));
+		table.putInt(offset + EXPIRY_OFFSET, toSecondsRoundedUp(now + timeout));
+		table.putInt(offset + TIMEOUT_OFFSET, (int) TimeUnit.MILLISECONDS.toSeconds(timeout));
+		size++;
+		return view(slot, name);
+	}
+
+	private static boolean isInlineName(String name) {
+		if (name.length() > NAME_WIDTH) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			if (name.charAt(i) > 0x7f) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void grow() {
+		ByteBuffer oldTable = table;
+		int oldCapacity = capacity;
+		Map<Integer, String> oldLongNames = new HashMap<>(longNames);
+		longNames.clear();
+
+		allocate(oldCapacity << 1);
+		for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+			int oldOffset = oldSlot * SLOT_SIZE;
+			byte length = oldTable.get(oldOffset + LENGTH_OFFSET);
+			if (length == EMPTY) {
+				continue;
+			}
+
+			int slot = oldTable.getInt(oldOffset + HASH_OFFSET) & mask;
+			while (length(slot) != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			copySlot(oldTable, oldOffset, slot * SLOT_SIZE);
+			if (length == LONG_NAME) {
+				longNames.put(slot, oldLongNames.get(oldSlot));
+			}
+		}
+	}
+
+	private void copySlot(ByteBuffer source, int sourceOffset, int targetOffset) {
+		for (int i = 0; i < SLOT_SIZE; i += 8) {
+			table.putLong(targetOffset + i, source.getLong(sourceOffset + i));
+		}
+	}
+
+	@Override
+	public boolean keepAlive(String name) {
+		int slot = find(name, hash(name));
+		if (slot < 0) {
+			return false;
+		}
+
+		int offset = slot * SLOT_SIZE;
+		long now = System.currentTimeMillis();
+		if (now > toMillis(table.getInt(offset + EXPIRY_OFFSET))) {
+			return false;
+		}
+		long timeout = TimeUnit.SECONDS.toMillis(table.getInt(offset + TIMEOUT_OFFSET));
+		table.putInt(offset + EXPIRY_OFFSET, toSecondsRoundedUp(now + timeout));
+		return true;
+	}
+
+	@Override
+	public boolean remove(Host host) {
+		int slot = find(host.getName(), hash(host.getName()));
+		if (slot < 0) {
+			return false;
+		}
+
+		// make sure the host was not replaced by another one of the same name
+		int offset = slot * SLOT_SIZE;
+		if ((table.getChar(offset + PORT_OFFSET) != host.getPort()) ||
+				(toMillis(table.getInt(offset + CREATE_TIME_OFFSET)) != host.getCreateTime())) {
+			return false;
+		}
+		delete(slot);
+		return true;
+	}
+
+	/**
+	 * Delete a slot by shifting back the entries after it that would no longer be reachable, so
+	 * that no tombstones are needed.
+	 */
+	private void delete(int slot) {
+		int hole = slot;
+		for (int next = (hole + 1) & mask; length(next) != EMPTY; next = (next + 1) & mask) {
+			int home = table.getInt(next * SLOT_SIZE + HASH_OFFSET) & mask;
+			boolean reachable = (hole <= next) ? ((hole < home) && (home <= next))
+				: ((hole < home) || (home <= next));
+			if (!reachable) {
+				copySlot(table, next * SLOT_SIZE, hole * SLOT_SIZE);
+				String longName = longNames.remove(next);
+				if (longName != null) {
+					longNames.put(hole, longName);
+				} else {
+					longNames.remove(hole);
+				}
+				hole = next;
+			}
+		}
+		table.put(hole * SLOT_SIZE + LENGTH_OFFSET, EMPTY);
+		longNames.remove(hole);
+		size--;
+	}
+
+	@Override
+	public void removeExpired(Predicate<Host> retained, Consumer<Host> removed) {
+		long now = System.currentTimeMillis();
+		int slot = 0;
+		while (slot < capacity) {
+			int offset = slot * SLOT_SIZE;
+			if ((table.get(offset + LENGTH_OFFSET) != EMPTY) &&
+					(now > toMillis(table.getInt(offset + EXPIRY_OFFSET)))) {
+				Host host = view(slot, getName(slot));
+				if (!retained.test(host)) {
+					removed.accept(host);
+					// an entry from further along may have been shifted into this slot
+					delete(slot);
+					continue;
+				}
+			}
+			slot++;
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Map<String, Host> getHosts() {
+		Map<String, Host> hosts = new LinkedHashMap<>();
+		for (int slot = 0; slot < capacity; slot++) {
+			if (length(slot) != EMPTY) {
+				String name = getName(slot);
+				hosts.put(name, view(slot, name));
+			}
+		}
+		return hosts;
+	}
+
+}
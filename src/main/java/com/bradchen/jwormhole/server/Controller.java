@@ -1,7 +1,9 @@
 package com.bradchen.jwormhole.server;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,6 +18,11 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 /**
@@ -25,46 +32,96 @@ public class Controller {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(Controller.class);
 	private static final DateFormat FULL_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	private static final int MAX_RESERVED_HOST_NAMES = 10000;
 	private static final Pattern HOST_NAME_PATTERN = Pattern.compile("^[-_.a-z0-9]+$",
 		Pattern.CASE_INSENSITIVE);
 	private static final String OK = "ok";
+	private static final String BUSY = "busy";
+	private static final String SUBSCRIBE_COMMAND = "subscribe ";
 
-	private final Settings settings;
+	private final SettingsManager settingsManager;
 	private final HostManager hostManager;
+	private final RequestStatistics requestStatistics;
+	private final HostWarmer hostWarmer;
+	private final Subscriptions subscriptions;
+	private final TrafficManager trafficManager;
 	private final ServerSocket serverSocket;
+	private final ExecutorService workers;
 	private boolean running;
 
-	public Controller(Settings settings, HostManager hostManager) throws IOException {
-		this.settings = settings;
+	public Controller(SettingsManager settingsManager, HostManager hostManager,
+					  RequestStatistics requestStatistics, HostWarmer hostWarmer,
+					  Subscriptions subscriptions, TrafficManager trafficManager)
+			throws IOException {
+		this.settingsManager = settingsManager;
 		this.hostManager = hostManager;
+		this.requestStatistics = requestStatistics;
+		this.hostWarmer = hostWarmer;
+		this.subscriptions = subscriptions;
+		this.trafficManager = trafficManager;
 		running = true;
-		serverSocket = new ServerSocket(settings.getControllerPort());
+		serverSocket = new ServerSocket(settingsManager.getSettings().getControllerPort());
+		// commands such as waitHostReady block, so connections are served off the accept thread;
+		// bounded, since a subscription holds its worker for as long as it is open
+		workers = new ThreadPoolExecutor(0, settingsManager.getSettings()
+			.getControllerMaxConnections(), 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+			new ThreadPoolExecutor.AbortPolicy());
 	}
 
 	public void run() {
 		new Thread(() -> {
 			while (running) {
-				Socket socket = null;
 				try {
-					socket = serverSocket.accept();
-					BufferedReader reader = new BufferedReader(new InputStreamReader(socket
-						.getInputStream()));
-					String response = processCommand(reader.readLine().trim());
-					if (response != null) {
-						PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-						writer.write(response + "\n");
-						writer.close();
+					Socket socket = serverSocket.accept();
+					try {
+						workers.execute(() -> processConnection(socket));
+					} catch (RejectedExecutionException exception) {
+						reject(socket);
 					}
 				} catch (SocketException ignored) {
 				} catch (IOException exception) {
-					LOGGER.warn("Error occurred while processing request", exception);
-				} finally {
-					IOUtils.closeQuietly(socket);
+					LOGGER.warn("Error occurred while accepting connection", exception);
 				}
 			}
 		}).start();
 	}
 
+	private static void reject(Socket socket) {
+		try {
+			PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+			writer.write(BUSY + "\n");
+			writer.close();
+		} catch (IOException ignored) {
+		} finally {
+			IOUtils.closeQuietly(socket);
+		}
+	}
+
+	private void processConnection(Socket socket) {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(socket
+				.getInputStream()));
+			String command = reader.readLine().trim();
+			if (command.startsWith(SUBSCRIBE_COMMAND)) {
+				// keeps the connection open and the worker busy until the client goes away
+				subscriptions.serve(socket, reader, command);
+				return;
+			}
+
+			String response = processCommand(command);
+			if (response != null) {
+				PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+				writer.write(response + "\n");
+				writer.close();
+			}
+		} catch (SocketException ignored) {
+		} catch (IOException exception) {
+			LOGGER.warn("Error occurred while processing request", exception);
+		} finally {
+			IOUtils.closeQuietly(socket);
+		}
+	}
+
 	private String processCommand(String command) {
 		if (StringUtils.isBlank(command)) {
 			return invalidCommandResponse(command);
@@ -75,13 +132,23 @@ public class Controller {
 			Map<String, Host> hosts = hostManager.getHosts();
 			for (Map.Entry<String, Host> entry : hosts.entrySet()) {
 				Host host = entry.getValue();
-				sb.append(getHostDomainName(host));
+				sb.append(hostManager.getDomainName(host));
 				sb.append(" ");
-				sb.append(host.getPort());
+				UpstreamPool pool = hostManager.getUpstreamPool(host);
+				if (pool == null) {
+					sb.append(host.getPort());
+				} else {
+					sb.append(StringUtils.join(pool.getPorts(), ','));
+				}
 				sb.append(" ");
 				sb.append(FULL_DATE_FORMAT.format(new Date(host.getCreateTime())));
 				sb.append(" ");
 				sb.append(FULL_DATE_FORMAT.format(new Date(host.getExpiry())));
+				TrafficManager.HostTraffic traffic = trafficManager.findTraffic(host);
+				sb.append(" ");
+				sb.append((traffic == null) ? 0 : traffic.getBytesIn());
+				sb.append(" ");
+				sb.append((traffic == null) ? 0 : traffic.getBytesOut());
 				sb.append("\n");
 			}
 			sb.append("# hosts: ");
@@ -89,6 +156,19 @@ public class Controller {
 			return sb.toString();
 		}
 
+		if ("requestTimings".equals(command)) {
+			return requestStatistics.dumpHistograms();
+		}
+
+		if ("slowRequests".equals(command)) {
+			return requestStatistics.dumpSlowRequests();
+		}
+
+		if ("resetRequestStatistics".equals(command)) {
+			requestStatistics.reset();
+			return OK;
+		}
+
 		String[] tokens = command.split(" ");
 		if ("createHost".equals(tokens[0])) {
 			Host host = null;
@@ -102,35 +182,210 @@ public class Controller {
 			if (host == null) {
 				return "error";
 			}
-			return String.format("%s,%s,%d", getHostDomainName(host), host.getName(),
+			hostWarmer.warmUp(host, host.getPort());
+			return String.format("%s,%s,%d", hostManager.getDomainName(host), host.getName(),
 				host.getPort());
 		}
 
+		if ("reserveHostNames".equals(tokens[0]) && (tokens.length == 2)) {
+			int count = NumberUtils.toInt(tokens[1], 0);
+			if ((count <= 0) || (count > MAX_RESERVED_HOST_NAMES)) {
+				return "Invalid count: " + tokens[1];
+			}
+			return StringUtils.join(hostManager.reserveHostNames(count), '\n');
+		}
+
+		if ("waitHostReady".equals(tokens[0]) && ((tokens.length == 2) || (tokens.length == 3))) {
+			Host host = hostManager.getHost(tokens[1]);
+			if (host == null) {
+				return "Invalid host: " + tokens[1];
+			}
+
+			int port = host.getPort();
+			if (tokens.length == 3) {
+				port = NumberUtils.toInt(tokens[2]);
+				UpstreamPool pool = hostManager.getUpstreamPool(host);
+				if ((port != host.getPort()) &&
+						((pool == null) || !ArrayUtils.contains(pool.getPorts(), port))) {
+					return "Invalid port: " + tokens[2];
+				}
+			}
+			boolean ready = hostWarmer.waitUntilReady(host, port,
+				TimeUnit.SECONDS.toMillis(settingsManager.getSettings().getHostReadinessTimeout()));
+			return ready ? "ready" : "not ready";
+		}
+
 		if ("keepHostAlive".equals(tokens[0]) && (tokens.length == 2)) {
 			Host host = hostManager.getHost(tokens[1]);
 			if (host == null) {
 				return "Invalid host: " + tokens[1];
 			}
 
-			host.keepAlive();
+			hostManager.keepHostAlive(host);
 			return OK;
 		}
 
-		if ("removeHost".equals(tokens[0]) && (tokens.length == 2)) {
+		if ("addHostPort".equals(tokens[0]) && (tokens.length == 2)) {
 			Host host = hostManager.getHost(tokens[1]);
 			if (host == null) {
 				return "Invalid host: " + tokens[1];
 			}
 
+			int port = hostManager.addHostPort(host);
+			if (port == 0) {
+				return "error";
+			}
+			hostWarmer.warmUp(host, port);
+			return String.format("%s,%s,%d", hostManager.getDomainName(host), host.getName(), port);
+		}
+
+		if ("removeHostPort".equals(tokens[0]) && ((tokens.length == 3) || (tokens.length == 4))) {
+			Host host = hostManager.getHost(tokens[1]);
+			if (host == null) {
+				return "Invalid host: " + tokens[1];
+			}
+
+			int port = NumberUtils.toInt(tokens[2]);
+			if (!hostManager.isAdditionalPort(host, port)) {
+				return "Invalid port: " + tokens[2];
+			}
+
+			// new requests go to the other ports while the ones in flight finish
+			long drainTimeout = getDrainTimeout(tokens, 3);
+			if ((drainTimeout > 0) && !hostManager.drainHostPort(host, port, drainTimeout)) {
+				LOGGER.info("Removing port {} of host {} with requests in flight", port,
+					host.getName());
+			}
+			if (!hostManager.removeHostPort(host, port)) {
+				return "Invalid port: " + tokens[2];
+			}
+			return OK;
+		}
+
+		if ("reloadSettings".equals(command) || "reloadDomains".equals(command)) {
+			try {
+				settingsManager.reload();
+				return OK;
+			} catch (IOException | RuntimeException exception) {
+				return "Unable to reload settings: " + exception.getMessage();
+			}
+		}
+
+		if ("get".equals(tokens[0]) && (tokens.length == 2)) {
+			String value = settingsManager.get(tokens[1]);
+			return (value == null) ? "Invalid setting: " + tokens[1] : value;
+		}
+
+		if ("set".equals(tokens[0]) && ((tokens.length == 2) || (tokens.length == 3))) {
+			try {
+				settingsManager.set(tokens[1], (tokens.length == 3) ? tokens[2] : "");
+			} catch (RuntimeException exception) {
+				return exception.getMessage();
+			}
+			return SettingsManager.isRestartRequired(tokens[1]) ? "ok; applies after restart" : OK;
+		}
+
+		if ("listAliases".equals(command)) {
+			StringBuilder sb = new StringBuilder();
+			Map<String, String> aliases = hostManager.getDomainRouter().getAliases();
+			for (Map.Entry<String, String> entry : aliases.entrySet()) {
+				sb.append(entry.getKey());
+				sb.append(" ");
+				sb.append(entry.getValue());
+				sb.append("\n");
+			}
+			sb.append("# aliases: ");
+			sb.append(aliases.size());
+			return sb.toString();
+		}
+
+		if ("addAlias".equals(tokens[0]) && (tokens.length == 3)) {
+			if (!HOST_NAME_PATTERN.matcher(tokens[1]).matches()) {
+				return "Invalid alias: " + tokens[1];
+			}
+			Host host = hostManager.getHost(tokens[2]);
+			if (host == null) {
+				return "Invalid host: " + tokens[2];
+			}
+
+			if (!hostManager.addAlias(host, tokens[1])) {
+				return "Invalid host: " + tokens[2];
+			}
+			return OK;
+		}
+
+		if ("removeAlias".equals(tokens[0]) && (tokens.length == 2)) {
+			if (!hostManager.getDomainRouter().removeAlias(tokens[1])) {
+				return "Invalid alias: " + tokens[1];
+			}
+			return OK;
+		}
+
+		if ("setHostBandwidth".equals(tokens[0]) && (tokens.length == 3)) {
+			Host host = hostManager.getHost(tokens[1]);
+			if (host == null) {
+				return "Invalid host: " + tokens[1];
+			}
+
+			// in KB/s, or "default" for the hostBandwidth setting
+			long bandwidth = -1;
+			if (!"default".equals(tokens[2])) {
+				bandwidth = toBandwidth(tokens[2]);
+				if (bandwidth < 0) {
+					return "Invalid bandwidth: " + tokens[2];
+				}
+			}
+			TrafficManager.HostTraffic traffic = trafficManager.findTraffic(host);
+			if (traffic == null) {
+				return "Invalid host: " + tokens[1];
+			}
+			traffic.setBandwidth(bandwidth);
+			return OK;
+		}
+
+		if ("setNodeBandwidth".equals(tokens[0]) && (tokens.length == 2)) {
+			long bandwidth = toBandwidth(tokens[1]);
+			if (bandwidth < 0) {
+				return "Invalid bandwidth: " + tokens[1];
+			}
+			trafficManager.setNodeBandwidth(bandwidth);
+			return OK;
+		}
+
+		if ("removeHost".equals(tokens[0]) && ((tokens.length == 2) || (tokens.length == 3))) {
+			Host host = hostManager.getHost(tokens[1]);
+			if (host == null) {
+				return "Invalid host: " + tokens[1];
+			}
+
+			// new requests are rejected while the ones in flight finish
+			long drainTimeout = getDrainTimeout(tokens, 2);
+			if ((drainTimeout > 0) && !hostManager.drainHost(host, drainTimeout)) {
+				LOGGER.info("Removing host {} with requests in flight", host.getName());
+			}
 			hostManager.removeHost(host);
 			return OK;
 		}
 		return invalidCommandResponse(command);
 	}
 
-	private String getHostDomainName(Host host) {
-		return String.format("%s%s%s", settings.getDomainNamePrefix(), host.getName(),
-			settings.getDomainNameSuffix());
+	/**
+	 * @return drain timeout in milliseconds given in seconds by an optional token, or the
+	 * hostDrainTimeout setting
+	 */
+	/**
+	 * @return bandwidth in bytes per second of a value in KB/s, or -1 if it is invalid or too
+	 * large
+	 */
+	private static long toBandwidth(String kilobytes) {
+		long bandwidth = NumberUtils.toLong(kilobytes, -1);
+		return ((bandwidth < 0) || (bandwidth > Long.MAX_VALUE / 1024)) ? -1 : bandwidth * 1024;
+	}
+
+	private long getDrainTimeout(String[] tokens, int index) {
+		int seconds = (tokens.length > index) ? NumberUtils.toInt(tokens[index])
+			: settingsManager.getSettings().getHostDrainTimeout();
+		return TimeUnit.SECONDS.toMillis(Math.max(0, seconds));
 	}
 
 	private String invalidCommandResponse(String command) {
@@ -141,6 +396,7 @@ public class Controller {
 		try {
 			running = false;
 			serverSocket.close();
+			workers.shutdown();
 		} catch (IOException ignored) {
 		}
 	}
@@ -0,0 +1,238 @@
+package com.bradchen.jwormhole.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Map domain names to host names. Wildcard domains such as {@code *.dev.example.com} or
+ * {@code jw-*.example.net} are kept in a trie over reversed domain labels, so that a lookup costs
+ * one map access per label however many domains are served; exact aliases are checked first.
+ *
+ * <p>Domains and configured aliases are replaced as a whole by {@link #configure}, which is safe
+ * while lookups are running. Aliases added at runtime are kept across reconfiguration.
+ */
+public class DomainRouter {
+
+	private static final char WILDCARD = '*';
+
+	private final Map<String, String> aliases;
+	private volatile Index index;
+
+	public DomainRouter(Settings settings) {
+		aliases = new ConcurrentHashMap<>();
+		configure(settings);
+	}
+
+	/**
+	 * Replace the wildcard domains and configured aliases.
+	 */
+	public void configure(Settings settings) {
+		index = new Index(getDomains(settings), getAliases(settings));
+	}
+
+	/**
+	 * Wildcard domains, each with a single {@code *} standing for the host name. Without the
+	 * domains setting, the domain name prefix and suffix form the only domain.
+	 */
+	static List<String> getDomains(Settings settings) {
+		List<String> domains = new ArrayList<>();
+		for (String domain : settings.getDomains().split(",")) {
+			if (!domain.trim().isEmpty()) {
+				domains.add(domain.trim().toLowerCase());
+			}
+		}
+		if (domains.isEmpty()) {
+			domains.add((settings.getDomainNamePrefix() + WILDCARD +
+				settings.getDomainNameSuffix()).toLowerCase());
+		}
+		return domains;
+	}
+
+	/**
+	 * Configured aliases, given as comma-separated {@code <domain>=<host name>} pairs.
+	 */
+	static Map<String, String> getAliases(Settings settings) {
+		Map<String, String> aliases = new HashMap<>();
+		for (String alias : settings.getDomainAliases().split(",")) {
+			if (!alias.trim().isEmpty()) {
+				String[] tokens = alias.split("=");
+				aliases.put(tokens[0].trim().toLowerCase(), tokens[1].trim().toLowerCase());
+			}
+		}
+		return aliases;
+	}
+
+	/**
+	 * @param domainName lower case domain name without port
+	 * @return host name, or null if the domain name is not served
+	 */
+	public String getName(String domainName) {
+		String name = aliases.get(domainName);
+		if (name != null) {
+			return name;
+		}
+		Index current = index;
+		name = current.aliases.get(domainName);
+		return (name != null) ? name : current.match(domainName);
+	}
+
+	/**
+	 * Domain name of a host in the first wildcard domain.
+	 */
+	public String getDomainName(String name) {
+		Rule rule = index.primaryRule;
+		return rule.prefix + name + rule.suffix + rule.zone;
+	}
+
+	public void addAlias(String domainName, String name) {
+		aliases.put(domainName.toLowerCase(), name);
+	}
+
+	public boolean removeAlias(String domainName) {
+		return aliases.remove(domainName.toLowerCase()) != null;
+	}
+
+	/**
+	 * Remove the runtime aliases of a host that is gone.
+	 */
+	public void removeAliases(String name) {
+		aliases.values().removeIf(name::equals);
+	}
+
+	/**
+	 * Runtime and configured aliases, sorted by domain name.
+	 */
+	public Map<String, String> getAliases() {
+		Map<String, String> allAliases = new HashMap<>(index.aliases);
+		allAliases.putAll(aliases);
+		List<String> domainNames = new ArrayList<>(allAliases.keySet());
+		Collections.sort(domainNames);
+		Map<String, String> sorted = new LinkedHashMap<>();
+		for (String domainName : domainNames) {
+			sorted.put(domainName, allAliases.get(domainName));
+		}
+		return sorted;
+	}
+
+	/**
+	 * A wildcard domain, split into the part before the {@code *}, the part after it up to the end
+	 * of its label, and the zone made of the remaining labels, e.g. {@code jw-}, {@code -dev} and
+	 * {@code .example.com} for {@code jw-*-dev.example.com}.
+	 */
+	private static final class Rule {
+
+		private final String prefix;
+		private final String suffix;
+		private final String zone;
+
+		private Rule(String domain) {
+			int wildcard = domain.indexOf(WILDCARD);
+			int dot = domain.indexOf('.', wildcard);
+			prefix = domain.substring(0, wildcard);
+			suffix = (dot < 0) ? domain.substring(wildcard + 1)
+				: domain.substring(wildcard + 1, dot);
+			zone = (dot < 0) ? "" : domain.substring(dot);
+		}
+
+		/**
+		 * @param candidate the labels in front of the zone
+		 * @return host name, or null if the labels do not fit the rule
+		 */
+		private String match(String candidate) {
+			int length = candidate.length();
+			if ((length <= prefix.length() + suffix.length()) || !candidate.startsWith(prefix) ||
+					!candidate.endsWith(suffix)) {
+				return null;
+			}
+			return candidate.substring(prefix.length(), length - suffix.length());
+		}
+
+		private int getSpecificity() {
+			return prefix.length() + suffix.length();
+		}
+
+	}
+
+	private static final class Node {
+
+		private final Map<String, Node> children = new HashMap<>();
+		private final List<Rule> rules = new ArrayList<>();
+
+	}
+
+	/**
+	 * Immutable once built.
+	 */
+	private static final class Index {
+
+		private final Node root;
+		private final Rule primaryRule;
+		private final Map<String, String> aliases;
+
+		private Index(List<String> domains, Map<String, String> aliases) {
+			root = new Node();
+			this.aliases = aliases;
+			List<Rule> rules = new ArrayList<>();
+			for (String domain : domains) {
+				rules.add(new Rule(domain));
+			}
+			primaryRule = rules.get(0);
+			for (Rule rule : rules) {
+				Node node = root;
+				String[] labels = rule.zone.isEmpty() ? new String[0]
+					: rule.zone.substring(1).split("\\.");
+				for (int i = labels.length - 1; i >= 0; i--) {
+					node = node.children.computeIfAbsent(labels[i], label -> new Node());
+				}
+				node.rules.add(rule);
+			}
+			sortRules(root);
+		}
+
+		private static void sortRules(Node node) {
+			// try the most specific rule of a zone first
+			node.rules.sort(Comparator.comparingInt(Rule::getSpecificity).reversed());
+			node.children.values().forEach(Index::sortRules);
+		}
+
+		/**
+		 * Walk the labels from the last one; the deepest zone that has a fitting rule wins.
+		 */
+		private String match(String domainName) {
+			String name = matchRules(root, domainName);
+			Node node = root;
+			int end = domainName.length();
+			int dot;
+			while ((dot = domainName.lastIndexOf('.', end - 1)) > 0) {
+				node = node.children.get(domainName.substring(dot + 1, end));
+				if (node == null) {
+					break;
+				}
+				String candidate = matchRules(node, domainName.substring(0, dot));
+				if (candidate != null) {
+					name = candidate;
+				}
+				end = dot;
+			}
+			return name;
+		}
+
+		private static String matchRules(Node node, String candidate) {
+			for (Rule rule : node.rules) {
+				String name = rule.match(candidate);
+				if (name != null) {
+					return name;
+				}
+			}
+			return null;
+		}
+
+	}
+
+}
@@ -23,6 +23,18 @@ public final class Host implements Serializable {
 		expiry = createTime + timeout;
 	}
 
+	/**
+	 * Recreate a host from the state kept by a {@link HostRegistry} that does not store host
+	 * objects.
+	 */
+	Host(String name, int port, long createTime, long timeout, long expiry) {
+		this.name = name;
+		this.port = port;
+		this.createTime = createTime;
+		this.timeout = timeout;
+		this.expiry = expiry;
+	}
+
 	public String getName() {
 		return name;
 	}
@@ -0,0 +1,31 @@
+package com.bradchen.jwormhole.server;
+
+/**
+ * Notified by {@link HostManager} of changes to hosts. Called outside of the host manager's lock.
+ */
+public interface HostListener {
+
+	/**
+	 * Called before the host's name is handed out.
+	 */
+	default void hostCreated(Host host) {
+	}
+
+	/**
+	 * @param expired true if the host was removed because it was not kept alive
+	 */
+	void hostRemoved(Host host, boolean expired);
+
+	/**
+	 * Called once an additional port of a host has been released.
+	 */
+	default void hostPortRemoved(Host host, int port) {
+	}
+
+	/**
+	 * Called from request threads when a request to a port of a host failed.
+	 */
+	default void hostUnhealthy(Host host, int port) {
+	}
+
+}
@@ -1,45 +1,111 @@
 package com.bradchen.jwormhole.server;
 
-import org.apache.commons.lang3.RandomStringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
 
 /**
  * Manage jWormhole clients and GC expired ones.
  */
-public class HostManager {
+public class HostManager implements SettingsListener {
 
+	private static final Logger LOGGER = LoggerFactory.getLogger(HostManager.class);
 	private static final String PORT_PATTERN = "(:[\\d]+)?$";
+	private static final long DRAIN_POLL_INTERVAL = 50;
+
+	// generated names only collide with custom names, or once the name space has wrapped around
+	private static final int MAX_NAME_PROBES = 1000;
+	static final String COMPACT_HOST_REGISTRY = "compact";
+	static final String MAP_HOST_REGISTRY = "map";
 
-	private final Settings settings;
 	private final ScheduledExecutorService scheduler;
 	private final ReadWriteLock readWriteLock;
 	private final Set<Integer> ports;
-	private final Map<String, Host> hosts;
+	private final HostRegistry hosts;
+	private final Map<String, UpstreamPool> upstreamPools;
+	private final List<HostListener> listeners;
+	private final DomainRouter domainRouter;
+	private final Map<String, HostRequests> hostRequests;
+	private final AtomicInteger nodeRequests;
+	private volatile boolean nodeDraining;
+	private volatile HostNameAllocator hostNameAllocator;
+	private volatile Settings settings;
+	private ScheduledFuture<?> gcTask;
 
 	public HostManager(Settings settings) {
 		this.settings = settings;
 		readWriteLock = new ReentrantReadWriteLock();
 		ports = new HashSet<>();
-		hosts = new ConcurrentHashMap<>();
+		hosts = createHostRegistry(settings);
+		upstreamPools = new ConcurrentHashMap<>();
+		listeners = new CopyOnWriteArrayList<>();
+		domainRouter = new DomainRouter(settings);
+		hostRequests = new ConcurrentHashMap<>();
+		nodeRequests = new AtomicInteger();
+		hostNameAllocator = new HostNameAllocator(settings.getHostNameLength());
 		scheduler = Executors.newScheduledThreadPool(1);
-		scheduler.scheduleAtFixedRate(this::removeExpiredHosts, settings.getHostManagerGcInterval(),
-			settings.getHostManagerGcInterval(), TimeUnit.SECONDS);
+		scheduleGc(settings.getHostManagerGcInterval());
+	}
+
+	private void scheduleGc(int interval) {
+		gcTask = scheduler.scheduleAtFixedRate(this::removeExpiredHosts, interval, interval,
+			TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Applies to hosts and ports created from now on; existing hosts keep their timeout.
+	 */
+	@Override
+	public synchronized void applySettings(Settings newSettings) {
+		int oldGcInterval = settings.getHostManagerGcInterval();
+		readWriteLock.writeLock().lock();
+		try {
+			settings = newSettings;
+		} finally {
+			readWriteLock.writeLock().unlock();
+		}
+		domainRouter.configure(newSettings);
+		if (newSettings.getHostNameLength() != hostNameAllocator.getLength()) {
+			hostNameAllocator = new HostNameAllocator(newSettings.getHostNameLength());
+		}
+		if (newSettings.getHostManagerGcInterval() != oldGcInterval) {
+			gcTask.cancel(false);
+			scheduleGc(newSettings.getHostManagerGcInterval());
+		}
+	}
+
+	private static HostRegistry createHostRegistry(Settings settings) {
+		if (COMPACT_HOST_REGISTRY.equals(settings.getHostRegistry())) {
+			return new CompactHostRegistry(settings.getHostRegistryCapacity(),
+				settings.isHostRegistryOffHeap());
+		}
+		return new MapHostRegistry();
+	}
+
+	public void addListener(HostListener listener) {
+		listeners.add(listener);
 	}
 
 	public Map<String, Host> getHosts() {
 		readWriteLock.readLock().lock();
 		try {
-			return Collections.unmodifiableMap(hosts);
+			return hosts.getHosts();
 		} finally {
 			readWriteLock.readLock().unlock();
 		}
@@ -63,80 +129,397 @@ public class HostManager {
 		}
 	}
 
+	public String getDomainName(Host host) {
+		return domainRouter.getDomainName(host.getName());
+	}
+
+	/**
+	 * @param domainName lower case domain name without port
+	 * @return host name, or null if the domain name is not served
+	 */
 	public String getNameFromDomainName(String domainName) {
-		int prefixLength = settings.getDomainNamePrefix().length();
-		int suffixLength = settings.getDomainNameSuffix().length();
-		int domainNameLength = domainName.length();
-		if (domainNameLength <= (prefixLength + suffixLength)) {
-			return null;
-		}
-		return domainName.substring(prefixLength, domainNameLength - prefixLength - suffixLength);
+		return domainRouter.getName(domainName);
 	}
 
-	public Host createHost() {
+	/**
+	 * Route another domain name to a host until the host is removed.
+	 *
+	 * @return false if the host no longer exists
+	 */
+	public boolean addAlias(Host host, String domainName) {
 		readWriteLock.writeLock().lock();
 		try {
-			String name;
-			do {
-				name = RandomStringUtils.randomAlphanumeric(settings.getHostNameLength())
-					.toLowerCase();
-			} while (hosts.containsKey(name));
-			return createHostAndAssignPort(name);
+			if (!hosts.contains(host.getName())) {
+				return false;
+			}
+			domainRouter.addAlias(domainName, host.getName());
+			return true;
 		} finally {
 			readWriteLock.writeLock().unlock();
 		}
 	}
 
+	public DomainRouter getDomainRouter() {
+		return domainRouter;
+	}
+
+	/**
+	 * Create a host with a generated name. Names are generated outside of the lock.
+	 *
+	 * @return host, or null if no free name was found
+	 */
+	public Host createHost() {
+		HostNameAllocator allocator = hostNameAllocator;
+		for (int i = 0; i < MAX_NAME_PROBES; i++) {
+			String name = allocator.next();
+			Host host = null;
+			readWriteLock.writeLock().lock();
+			try {
+				if (!hosts.contains(name)) {
+					host = createHostAndAssignPort(name);
+				}
+			} finally {
+				readWriteLock.writeLock().unlock();
+			}
+			if (host != null) {
+				fireHostCreated(host);
+				return host;
+			}
+		}
+		LOGGER.warn("No free host name found; the host name length may be too short");
+		return null;
+	}
+
+	/**
+	 * Take generated names that are free now and will not be generated again for a long time, so
+	 * that a client can create hosts with them later.
+	 */
+	public List<String> reserveHostNames(int count) {
+		HostNameAllocator allocator = hostNameAllocator;
+		List<String> names = new ArrayList<>(count);
+		for (int i = 0; (names.size() < count) && (i < count + MAX_NAME_PROBES); i++) {
+			List<String> batch = allocator.reserve(count - names.size());
+			readWriteLock.readLock().lock();
+			try {
+				for (String name : batch) {
+					if (!hosts.contains(name)) {
+						names.add(name);
+					}
+				}
+			} finally {
+				readWriteLock.readLock().unlock();
+			}
+		}
+		return names;
+	}
+
 	public Host createHost(String name) {
+		Host host;
 		readWriteLock.writeLock().lock();
 		try {
-			if (hosts.containsKey(name)) {
+			if (hosts.contains(name)) {
 				return null;
 			}
-			return createHostAndAssignPort(name);
+			host = createHostAndAssignPort(name);
 		} finally {
 			readWriteLock.writeLock().unlock();
 		}
+		fireHostCreated(host);
+		return host;
 	}
 
 	private Host createHostAndAssignPort(String name) {
+		Host host = hosts.add(name, assignPort(), TimeUnit.MILLISECONDS.convert(
+				settings.getHostTimeout(), TimeUnit.SECONDS));
+		hostRequests.put(name, new HostRequests());
+		return host;
+	}
+
+	private int assignPort() {
 		int port;
 		do {
-			port = (int)(Math.random() * (settings.getHostPortRangeEnd() -
-					settings.getHostPortRangeStart()) + settings.getHostPortRangeStart());
+			port = ThreadLocalRandom.current().nextInt(settings.getHostPortRangeStart(),
+				settings.getHostPortRangeEnd());
 		} while (ports.contains(port));
-		Host host = new Host(name, port, TimeUnit.MILLISECONDS.convert(settings.getHostTimeout(),
-				TimeUnit.SECONDS));
 		ports.add(port);
-		hosts.put(name, host);
-		return host;
+		return port;
+	}
+
+	/**
+	 * Extend the expiry of a host.
+	 *
+	 * @return false if the host no longer exists or has already expired
+	 */
+	public boolean keepHostAlive(Host host) {
+		readWriteLock.writeLock().lock();
+		try {
+			return hosts.keepAlive(host.getName());
+		} finally {
+			readWriteLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Upstream pool of a host with more than one port.
+	 *
+	 * @return upstream pool, or null if the host only has its original port
+	 */
+	public UpstreamPool getUpstreamPool(Host host) {
+		return upstreamPools.get(host.getName());
+	}
+
+	/**
+	 * Assign an additional upstream port to a host, so that requests can be spread across more
+	 * than one tunnel.
+	 *
+	 * @return the new port, or 0 if the host no longer exists
+	 */
+	public int addHostPort(Host host) {
+		readWriteLock.writeLock().lock();
+		try {
+			if (!hosts.contains(host.getName())) {
+				return 0;
+			}
+			int port = assignPort();
+			upstreamPools.computeIfAbsent(host.getName(), name -> new UpstreamPool(host.getPort()))
+				.addPort(port);
+			return port;
+		} finally {
+			readWriteLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Release an additional upstream port of a host. The original port cannot be removed.
+	 */
+	public boolean removeHostPort(Host host, int port) {
+		readWriteLock.writeLock().lock();
+		try {
+			UpstreamPool pool = upstreamPools.get(host.getName());
+			if ((port == host.getPort()) || (pool == null) || !pool.removePort(port)) {
+				return false;
+			}
+			ports.remove(port);
+		} finally {
+			readWriteLock.writeLock().unlock();
+		}
+		for (HostListener listener : listeners) {
+			try {
+				listener.hostPortRemoved(host, port);
+			} catch (RuntimeException exception) {
+				LOGGER.warn("Host listener failed", exception);
+			}
+		}
+		return true;
 	}
 
 	public void removeHost(Host host) {
 		readWriteLock.writeLock().lock();
 		try {
-			hosts.remove(host.getName());
+			if (!hosts.remove(host)) {
+				return;
+			}
+			releasePorts(host);
 		} finally {
 			readWriteLock.writeLock().unlock();
 		}
+		fireHostRemoved(host, false);
+	}
+
+	private void releasePorts(Host host) {
+		domainRouter.removeAliases(host.getName());
+		hostRequests.remove(host.getName());
+		ports.remove(host.getPort());
+		UpstreamPool pool = upstreamPools.remove(host.getName());
+		if (pool != null) {
+			for (int port : pool.getPorts()) {
+				ports.remove(port);
+			}
+		}
 	}
 
 	private void removeExpiredHosts() {
+		List<Host> removed = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		long drainTimeout = TimeUnit.SECONDS.toMillis(settings.getHostDrainTimeout());
 		readWriteLock.writeLock().lock();
 		try {
-			hosts.entrySet().stream().forEach(entry -> {
-				if (entry.getValue().isExpired()) {
-					ports.remove(entry.getValue().getPort());
-					hosts.remove(entry.getKey());
-				}
+			hosts.removeExpired(host -> isDrainingExpired(host, now, drainTimeout), host -> {
+				releasePorts(host);
+				removed.add(host);
 			});
 		} finally {
 			readWriteLock.writeLock().unlock();
 		}
+		removed.forEach(host -> fireHostRemoved(host, true));
+	}
+
+	/**
+	 * An expired host that is still serving requests drains like a removed one: new requests are
+	 * rejected, and it goes once the others are done or the drain timeout has passed.
+	 */
+	private boolean isDrainingExpired(Host host, long now, long drainTimeout) {
+		HostRequests requests = hostRequests.get(host.getName());
+		if ((requests == null) || (requests.count.get() == 0)) {
+			return false;
+		}
+		requests.draining = true;
+		return now <= host.getExpiry() + drainTimeout;
+	}
+
+	/**
+	 * Count a request to a host as in flight; it must be ended with
+	 * {@link #endRequest(RequestTicket)}.
+	 *
+	 * @return ticket to end the request with, or null if the host is gone or the host or the node
+	 * is draining, in which case the request must be rejected
+	 */
+	public RequestTicket startRequest(Host host) {
+		if (nodeDraining) {
+			return null;
+		}
+		HostRequests requests = hostRequests.get(host.getName());
+		if (requests == null) {
+			return null;
+		}
+		requests.count.incrementAndGet();
+		nodeRequests.incrementAndGet();
+		// checked again, so that a drain never misses a request that slipped in
+		if (requests.draining || nodeDraining) {
+			endRequest(requests);
+			return null;
+		}
+		return requests;
+	}
+
+	/**
+	 * End a request on the counter it was started on, so that it is never counted against a newer
+	 * host of the same name.
+	 */
+	public void endRequest(RequestTicket ticket) {
+		HostRequests requests = (HostRequests) ticket;
+		requests.count.decrementAndGet();
+		nodeRequests.decrementAndGet();
+	}
+
+	/**
+	 * Reject new requests to a host and wait for the ones in flight to finish.
+	 *
+	 * @return false if requests were still in flight at the deadline
+	 */
+	public boolean drainHost(Host host, long timeout) {
+		HostRequests requests = hostRequests.get(host.getName());
+		if (requests == null) {
+			return true;
+		}
+		requests.draining = true;
+		return await(() -> requests.count.get() == 0, timeout);
+	}
+
+	/**
+	 * @return true if the port was added to the host with {@link #addHostPort(Host)} and has not
+	 * been removed since
+	 */
+	public boolean isAdditionalPort(Host host, int port) {
+		UpstreamPool pool = upstreamPools.get(host.getName());
+		return (port != host.getPort()) && (pool != null) && (pool.getUpstream(port) != null);
+	}
+
+	/**
+	 * Send no new requests to an additional port of a host and wait for the ones in flight on it
+	 * to finish. New requests go to the other ports of the host.
+	 *
+	 * @return false if the port is not an additional port of the host, or requests were still in
+	 * flight at the deadline
+	 */
+	public boolean drainHostPort(Host host, int port, long timeout) {
+		UpstreamPool pool = upstreamPools.get(host.getName());
+		UpstreamPool.Upstream upstream = (pool == null) ? null : pool.getUpstream(port);
+		if ((upstream == null) || (port == host.getPort())) {
+			return false;
+		}
+		upstream.drain();
+		return await(() -> upstream.getOutstanding() == 0, timeout);
+	}
+
+	/**
+	 * Reject new requests to all hosts and wait for the ones in flight to finish; used on shutdown.
+	 *
+	 * @return false if requests were still in flight at the deadline
+	 */
+	public boolean drainNode(long timeout) {
+		nodeDraining = true;
+		return await(() -> nodeRequests.get() == 0, timeout);
+	}
+
+	private static boolean await(BooleanSupplier condition, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			try {
+				Thread.sleep(DRAIN_POLL_INTERVAL);
+			} catch (InterruptedException exception) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Report that a request to a port of a host failed.
+	 */
+	public void reportUnhealthy(Host host, int port) {
+		for (HostListener listener : listeners) {
+			try {
+				listener.hostUnhealthy(host, port);
+			} catch (RuntimeException exception) {
+				LOGGER.warn("Host listener failed", exception);
+			}
+		}
+	}
+
+	private void fireHostCreated(Host host) {
+		for (HostListener listener : listeners) {
+			try {
+				listener.hostCreated(host);
+			} catch (RuntimeException exception) {
+				LOGGER.warn("Host listener failed", exception);
+			}
+		}
+	}
+
+	private void fireHostRemoved(Host host, boolean expired) {
+		for (HostListener listener : listeners) {
+			try {
+				listener.hostRemoved(host, expired);
+			} catch (RuntimeException exception) {
+				// keep the GC task alive
+				LOGGER.warn("Host listener failed", exception);
+			}
+		}
 	}
 
 	public void shutdown() {
 		scheduler.shutdown();
 	}
 
+	/**
+	 * Handed out for each request that is let through, to end it with.
+	 */
+	public interface RequestTicket {
+	}
+
+	/**
+	 * In-flight requests of a host.
+	 */
+	private static final class HostRequests implements RequestTicket {
+
+		private final AtomicInteger count = new AtomicInteger();
+		private volatile boolean draining;
+
+	}
+
 }
@@ -0,0 +1,114 @@
+package com.bradchen.jwormhole.server;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generate host names without collisions and without a shared random generator. A counter is run
+ * through a keyed permutation of all names of the configured length, so that consecutive names
+ * look random but none repeats until every name has been handed out. The permutation is a Feistel
+ * network over the smallest even number of bits that covers the name space; values outside of the
+ * name space are walked along the cycle until they fall inside it, which takes fewer than four
+ * rounds on average.
+ */
+public final class HostNameAllocator {
+
+	private static final char[] ALPHABET = "0123456789abcdefghijklmnopqrstuvwxyz".toCharArray();
+
+	// 36^12 is the largest power of 36 that fits in a long; longer names get random characters
+	private static final int MAX_PERMUTED_LENGTH = 12;
+
+	private static final int ROUNDS = 4;
+
+	private final int length;
+	private final int permutedLength;
+	private final long size;
+	private final int halfBits;
+	private final long halfMask;
+	private final long[] keys;
+	private final AtomicLong counter;
+
+	public HostNameAllocator(int length) {
+		this.length = length;
+		permutedLength = Math.min(length, MAX_PERMUTED_LENGTH);
+		long names = 1;
+		for (int i = 0; i < permutedLength; i++) {
+			names *= ALPHABET.length;
+		}
+		size = names;
+		int bits = 64 - Long.numberOfLeadingZeros(size - 1);
+		halfBits = Math.max(1, (bits + 1) / 2);
+		halfMask = (1L << halfBits) - 1;
+		keys = new long[ROUNDS];
+		SecureRandom random = new SecureRandom();
+		for (int i = 0; i < ROUNDS; i++) {
+			keys[i] = random.nextLong();
+		}
+		counter = new AtomicLong();
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Next name. Names only repeat once the whole name space has been used, or if a host was
+	 * created with a custom name; callers still check that the name is free.
+	 */
+	public String next() {
+		return toName(counter.getAndIncrement());
+	}
+
+	/**
+	 * Take a run of names at once; they are not handed out by {@link #next()} until the name space
+	 * wraps around.
+	 */
+	public List<String> reserve(int count) {
+		long start = counter.getAndAdd(count);
+		List<String> names = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			names.add(toName(start + i));
+		}
+		return names;
+	}
+
+	private String toName(long index) {
+		long value = permute(Long.remainderUnsigned(index, size));
+		char[] name = new char[length];
+		for (int i = permutedLength - 1; i >= 0; i--) {
+			name[i] = ALPHABET[(int) (value % ALPHABET.length)];
+			value /= ALPHABET.length;
+		}
+		for (int i = permutedLength; i < length; i++) {
+			name[i] = ALPHABET[ThreadLocalRandom.current().nextInt(ALPHABET.length)];
+		}
+		return new String(name);
+	}
+
+	private long permute(long value) {
+		do {
+			long left = value >>> halfBits;
+			long right = value & halfMask;
+			for (long key : keys) {
+				long mixed = left ^ (mix(right ^ key) & halfMask);
+				left = right;
+				right = mixed;
+			}
+			value = (left << halfBits) | right;
+		} while (Long.compareUnsigned(value, size) >= 0);
+		return value;
+	}
+
+	/**
+	 * Finalizer of SplitMix64.
+	 */
+	private static long mix(long value) {
+		value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+		value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+		return value ^ (value >>> 31);
+	}
+
+}
@@ -0,0 +1,52 @@
+package com.bradchen.jwormhole.server;
+
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Storage of hosts by name. Implementations are not thread-safe; {@link HostManager} guards them
+ * with its read-write lock.
+ */
+public interface HostRegistry {
+
+	/**
+	 * @return host, or null if there is no host with the name
+	 */
+	Host get(String name);
+
+	boolean contains(String name);
+
+	/**
+	 * Add a new host. The name must not already be in use.
+	 */
+	Host add(String name, int port, long timeout);
+
+	/**
+	 * Extend the expiry of a host that has not expired yet.
+	 *
+	 * @return false if the host does not exist or has already expired
+	 */
+	boolean keepAlive(String name);
+
+	/**
+	 * Remove a host, provided that it has not been replaced by another host of the same name.
+	 */
+	boolean remove(Host host);
+
+	/**
+	 * Remove all expired hosts.
+	 *
+	 * @param retained tells which expired hosts to keep for now
+	 * @param removed called with each removed host
+	 */
+	void removeExpired(Predicate<Host> retained, Consumer<Host> removed);
+
+	int size();
+
+	/**
+	 * Hosts by name; may be a live view or a snapshot.
+	 */
+	Map<String, Host> getHosts();
+
+}
@@ -0,0 +1,224 @@
+package com.bradchen.jwormhole.server;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Probe the tunnel of a new host port until it answers, then open and park a number of upstream
+ * connections in the proxy's connection pool, so that the first request does not pay for the
+ * connection setup. With HTTP/2 upstreams, a port that speaks HTTP/2 gets its one shared
+ * connection instead.
+ */
+public final class HostWarmer implements HostListener, SettingsListener {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(HostWarmer.class);
+	private static final long PROBE_INTERVAL = 500;
+	private static final int CONNECT_TIMEOUT = 1000;
+	private static final long LEASE_TIMEOUT = 1000;
+
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final Http2Upstream http2Upstream;
+	private final ScheduledExecutorService scheduler;
+	private final Map<String, Probe> probes;
+	private volatile int warmupConnections;
+	private volatile long readinessTimeout;
+
+	/**
+	 * @param http2Upstream HTTP/2 upstream, or null if upstream HTTP/2 is disabled
+	 */
+	public HostWarmer(Settings settings, PoolingHttpClientConnectionManager connectionManager,
+					  Http2Upstream http2Upstream) {
+		this.connectionManager = connectionManager;
+		this.http2Upstream = http2Upstream;
+		warmupConnections = settings.getHostWarmupConnections();
+		readinessTimeout = TimeUnit.SECONDS.toMillis(settings.getHostReadinessTimeout());
+		probes = new ConcurrentHashMap<>();
+		scheduler = Executors.newScheduledThreadPool(2);
+	}
+
+	@Override
+	public void applySettings(Settings settings) {
+		warmupConnections = settings.getHostWarmupConnections();
+		readinessTimeout = TimeUnit.SECONDS.toMillis(settings.getHostReadinessTimeout());
+	}
+
+	/**
+	 * Start probing a port of a host in the background, unless it is already being probed or has
+	 * been found ready.
+	 */
+	public void warmUp(Host host, int port) {
+		getProbe(host, port);
+	}
+
+	/**
+	 * Wait until a port of a host answers, starting a probe if there is none.
+	 *
+	 * @return false if the port did not answer in time or the host was removed
+	 */
+	public boolean waitUntilReady(Host host, int port, long timeout) {
+		try {
+			return getProbe(host, port).ready.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException | TimeoutException exception) {
+			return false;
+		}
+	}
+
+	private Probe getProbe(Host host, int port) {
+		return probes.computeIfAbsent(getKey(host.getName(), port), key -> {
+			Probe probe = new Probe(key, host, port);
+			scheduler.execute(probe);
+			return probe;
+		});
+	}
+
+	private static String getKey(String name, int port) {
+		return name + ":" + port;
+	}
+
+	@Override
+	public void hostRemoved(Host host, boolean expired) {
+		probes.values().removeIf(probe -> {
+			if (probe.host.getName().equals(host.getName())) {
+				probe.ready.complete(false);
+				return true;
+			}
+			return false;
+		});
+	}
+
+	@Override
+	public void hostPortRemoved(Host host, int port) {
+		Probe probe = probes.remove(getKey(host.getName(), port));
+		if (probe != null) {
+			probe.ready.complete(false);
+		}
+	}
+
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	private final class Probe implements Runnable {
+
+		private final String key;
+		private final Host host;
+		private final int port;
+		private final HttpRoute route;
+		private final long deadline;
+		private final CompletableFuture<Boolean> ready;
+
+		private Probe(String key, Host host, int port) {
+			this.key = key;
+			this.host = host;
+			this.port = port;
+			// same route as the one planned for "http://localhost:<port>/" proxy requests
+			route = new HttpRoute(new HttpHost("localhost", port));
+			deadline = System.currentTimeMillis() + readinessTimeout;
+			ready = new CompletableFuture<>();
+		}
+
+		@Override
+		public void run() {
+			if (ready.isDone()) {
+				return;
+			}
+
+			try {
+				if ((http2Upstream == null) || !http2Upstream.warmUp(host, port)) {
+					openConnections();
+				}
+				ready.complete(true);
+				LOGGER.debug("Host {} is ready", key);
+			} catch (IOException exception) {
+				if (Thread.currentThread().isInterrupted()) {
+					// shutting down
+					probes.remove(key, this);
+					ready.complete(false);
+				} else if (System.currentTimeMillis() < deadline) {
+					scheduler.schedule(this, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+				} else {
+					// forget the probe, so that a later wait starts a new one
+					probes.remove(key, this);
+					ready.complete(false);
+					LOGGER.info("Host {} did not become ready", key);
+				}
+			} catch (RuntimeException exception) {
+				probes.remove(key, this);
+				ready.completeExceptionally(exception);
+				LOGGER.warn("Unable to probe host " + key, exception);
+			}
+		}
+
+		/**
+		 * Lease and connect the warm-up connections all at once, so that the pool hands out
+		 * distinct connections, then give them back to be kept alive. The first connection doubles
+		 * as the readiness probe.
+		 */
+		private void openConnections() throws IOException {
+			List<HttpClientConnection> connections = new ArrayList<>();
+			try {
+				HttpContext context = new BasicHttpContext();
+				for (int i = 0; i < Math.max(warmupConnections, 1); i++) {
+					HttpClientConnection connection;
+					try {
+						connection = connectionManager.requestConnection(route, null)
+							.get(LEASE_TIMEOUT, TimeUnit.MILLISECONDS);
+					} catch (ConnectionPoolTimeoutException exception) {
+						// the port is already warm if connections to it are in use; otherwise
+						// other ports have taken up the whole pool and nothing is known yet
+						if (connections.isEmpty() &&
+								(connectionManager.getStats(route).getLeased() == 0)) {
+							throw exception;
+						}
+						return;
+					} catch (InterruptedException exception) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					} catch (ExecutionException exception) {
+						throw new IOException(exception);
+					}
+					connections.add(connection);
+					if (!connection.isOpen()) {
+						connectionManager.connect(connection, route, CONNECT_TIMEOUT, context);
+						connectionManager.routeComplete(connection, route, context);
+						// binds the socket streams; the stale check of an unused connection
+						// fails without them
+						connection.flush();
+					}
+				}
+				if (warmupConnections == 0) {
+					connections.get(0).close();
+				}
+			} finally {
+				for (HttpClientConnection connection : connections) {
+					connectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+
+	}
+
+}
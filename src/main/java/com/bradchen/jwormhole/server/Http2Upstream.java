@@ -0,0 +1,573 @@
+package com.bradchen.jwormhole.server;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpURI;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http.MetaData;
+import org.eclipse.jetty.http2.ErrorCode;
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.api.Stream;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.frames.DataFrame;
+import org.eclipse.jetty.http2.frames.GoAwayFrame;
+import org.eclipse.jetty.http2.frames.HeadersFrame;
+import org.eclipse.jetty.http2.frames.ResetFrame;
+import org.eclipse.jetty.http2.frames.SettingsFrame;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.FutureCallback;
+import org.eclipse.jetty.util.FuturePromise;
+import org.eclipse.jetty.util.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Send requests to host ports over cleartext HTTP/2 with prior knowledge, so that concurrent
+ * requests to a port share one connection, and thus one tunnel channel, instead of opening one
+ * each. Whether a port speaks HTTP/2 is found out on its first request: the connection preface is
+ * sent, and the port counts as HTTP/2 once it answers with its settings. Ports that do not are left
+ * to HTTP/1.1 and tried again after a while, as are requests beyond the concurrent stream limit of
+ * a port.
+ */
+public final class Http2Upstream implements HostListener, SettingsListener {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(Http2Upstream.class);
+	private static final long CONNECT_TIMEOUT = 1000;
+
+	// time that a port which accepted the connection has to answer the preface
+	private static final long PREFACE_TIMEOUT = 1000;
+
+	// idle connections are closed after this long; streams have no timeout, like HTTP/1.1 requests
+	private static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private final HTTP2Client client;
+	private final Map<String, Endpoint> endpoints;
+	private volatile long retryInterval;
+
+	public Http2Upstream(Settings settings) throws IOException {
+		endpoints = new ConcurrentHashMap<>();
+		retryInterval = TimeUnit.SECONDS.toMillis(settings.getUpstreamHttp2RetryInterval());
+		client = new HTTP2Client();
+		client.setConnectTimeout(CONNECT_TIMEOUT);
+		client.setIdleTimeout(IDLE_TIMEOUT);
+		client.setStreamIdleTimeout(0);
+		try {
+			client.start();
+		} catch (Exception exception) {
+			throw new IOException("Unable to start HTTP/2 client", exception);
+		}
+	}
+
+	@Override
+	public void applySettings(Settings settings) {
+		retryInterval = TimeUnit.SECONDS.toMillis(settings.getUpstreamHttp2RetryInterval());
+	}
+
+	/**
+	 * Send a request to a port of a host over HTTP/2. The request URI must be absolute, and its
+	 * headers already stripped of hop-by-hop headers.
+	 *
+	 * @return response, or null if the request should be sent over HTTP/1.1 instead
+	 */
+	public HttpResponse execute(Host host, int port, HttpRequest request, RequestTimings timings)
+			throws IOException {
+		Session session = getEndpoint(host, port).getSession();
+		if (session == null) {
+			return null;
+		}
+		timings.markConnected();
+
+		HttpEntity entity = (request instanceof HttpEntityEnclosingRequest) ?
+			((HttpEntityEnclosingRequest) request).getEntity() : null;
+		ResponseListener listener = new ResponseListener();
+		FuturePromise<Stream> promise = new FuturePromise<>();
+		session.newStream(new HeadersFrame(toMetaData(request, entity), null, entity == null),
+			promise, listener);
+		Stream stream;
+		try {
+			stream = promise.get();
+		} catch (ExecutionException exception) {
+			if (exception.getCause() instanceof IllegalStateException) {
+				// all streams the port allows are in use
+				return null;
+			}
+			throw new IOException("Unable to open HTTP/2 stream", exception.getCause());
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+
+		listener.content.stream = stream;
+		try {
+			if (entity != null) {
+				sendContent(stream, entity);
+			}
+			MetaData.Response response = listener.awaitResponse();
+			timings.markFirstByte();
+			return toHttpResponse(response, listener.content);
+		} catch (IOException | RuntimeException exception) {
+			listener.content.close();
+			throw exception;
+		}
+	}
+
+	private static MetaData.Request toMetaData(HttpRequest request, HttpEntity entity) {
+		HttpFields fields = new HttpFields();
+		for (Header header : request.getAllHeaders()) {
+			// carried by the :authority pseudo header
+			if (!header.getName().equalsIgnoreCase(HttpHeaders.HOST)) {
+				fields.add(header.getName().toLowerCase(Locale.ENGLISH), header.getValue());
+			}
+		}
+		long contentLength = -1;
+		if ((entity != null) && (entity.getContentLength() >= 0)) {
+			contentLength = entity.getContentLength();
+			fields.put("content-length", Long.toString(contentLength));
+		}
+		return new MetaData.Request(request.getRequestLine().getMethod(),
+			new HttpURI(request.getRequestLine().getUri()), HttpVersion.HTTP_2, fields,
+			contentLength);
+	}
+
+	/**
+	 * Stream the request body one frame at a time, waiting for each frame to be written, so that
+	 * flow control of the stream holds back the client.
+	 */
+	private static void sendContent(Stream stream, HttpEntity entity) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream inputStream = entity.getContent()) {
+			for (int read; (read = inputStream.read(buffer)) >= 0; ) {
+				if (read > 0) {
+					sendData(stream, ByteBuffer.wrap(buffer, 0, read), false);
+				}
+			}
+		}
+		sendData(stream, ByteBuffer.allocate(0), true);
+	}
+
+	private static void sendData(Stream stream, ByteBuffer data, boolean last) throws IOException {
+		FutureCallback callback = new FutureCallback();
+		stream.data(new DataFrame(stream.getId(), data, last), callback);
+		try {
+			callback.get();
+		} catch (ExecutionException exception) {
+			throw new IOException("Unable to send request body", exception.getCause());
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private static HttpResponse toHttpResponse(MetaData.Response metaData, ResponseContent content) {
+		int status = metaData.getStatus();
+		HttpResponse response = new BasicHttpResponse(new BasicStatusLine(
+			org.apache.http.HttpVersion.HTTP_1_1, status,
+			EnglishReasonPhraseCatalog.INSTANCE.getReason(status, Locale.ENGLISH)));
+		for (HttpField field : metaData.getFields()) {
+			response.addHeader(field.getName(), field.getValue());
+		}
+		response.setEntity(new InputStreamEntity(content,
+			metaData.getFields().getLongField(HttpHeaders.CONTENT_LENGTH)));
+		return response;
+	}
+
+	/**
+	 * Connect to a port of a host ahead of its first request.
+	 *
+	 * @return true if the port speaks HTTP/2, false if it is taken to speak HTTP/1.1
+	 * @throws IOException if the port cannot be reached
+	 */
+	public boolean warmUp(Host host, int port) throws IOException {
+		Endpoint endpoint = getEndpoint(host, port);
+		if (endpoint.getSession() != null) {
+			return true;
+		}
+		if (endpoint.isHttp1()) {
+			return false;
+		}
+		throw new IOException("Unable to connect to " + getKey(host.getName(), port));
+	}
+
+	private Endpoint getEndpoint(Host host, int port) {
+		return endpoints.computeIfAbsent(getKey(host.getName(), port),
+			key -> new Endpoint(host.getName(), port));
+	}
+
+	private static String getKey(String name, int port) {
+		return name + ":" + port;
+	}
+
+	@Override
+	public void hostRemoved(Host host, boolean expired) {
+		endpoints.values().removeIf(endpoint -> {
+			if (endpoint.name.equals(host.getName())) {
+				endpoint.close();
+				return true;
+			}
+			return false;
+		});
+	}
+
+	@Override
+	public void hostPortRemoved(Host host, int port) {
+		Endpoint endpoint = endpoints.remove(getKey(host.getName(), port));
+		if (endpoint != null) {
+			endpoint.close();
+		}
+	}
+
+	public void shutdown() {
+		try {
+			client.stop();
+		} catch (Exception exception) {
+			LOGGER.warn("Unable to stop HTTP/2 client", exception);
+		}
+	}
+
+	/**
+	 * HTTP/2 connection to a port of a host, or the finding that the port speaks HTTP/1.1.
+	 */
+	private final class Endpoint {
+
+		private final String name;
+		private final int port;
+
+		// guarded by this
+		private Connection connection;
+		private long http1Until;
+
+		private Endpoint(String name, int port) {
+			this.name = name;
+			this.port = port;
+		}
+
+		/**
+		 * Connect to the port if there is no connection yet, and wait for it to answer the
+		 * preface.
+		 *
+		 * @return session, or null if the port is taken to speak HTTP/1.1 or cannot be reached
+		 */
+		private Session getSession() {
+			Connection current;
+			synchronized (this) {
+				if (System.currentTimeMillis() < http1Until) {
+					return null;
+				}
+				if ((connection == null) || connection.isClosed()) {
+					connection = new Connection(this);
+				}
+				current = connection;
+			}
+
+			try {
+				return current.ready.get(CONNECT_TIMEOUT + PREFACE_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException exception) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (ExecutionException | TimeoutException exception) {
+				synchronized (this) {
+					if (connection == current) {
+						connection = null;
+						// a port that cannot be reached says nothing about its protocol; the
+						// HTTP/1.1 request fails just the same and ejects the port
+						if (current.session != null) {
+							http1Until = System.currentTimeMillis() + retryInterval;
+							LOGGER.debug("Host {}:{} does not speak HTTP/2", name, port);
+						}
+					}
+				}
+				current.close();
+				return null;
+			}
+		}
+
+		private synchronized boolean isHttp1() {
+			return System.currentTimeMillis() < http1Until;
+		}
+
+		private synchronized void closed(Connection closed) {
+			if (connection == closed) {
+				connection = null;
+			}
+		}
+
+		private void close() {
+			Connection current;
+			synchronized (this) {
+				current = connection;
+				connection = null;
+			}
+			if (current != null) {
+				current.close();
+			}
+		}
+
+	}
+
+	private final class Connection extends Session.Listener.Adapter {
+
+		private final Endpoint endpoint;
+		private final CompletableFuture<Session> ready;
+
+		// set once the port accepts the connection
+		private volatile Session session;
+
+		private Connection(Endpoint endpoint) {
+			this.endpoint = endpoint;
+			ready = new CompletableFuture<>();
+			client.connect(new InetSocketAddress("localhost", endpoint.port), this,
+				new Promise<Session>() {
+					@Override
+					public void succeeded(Session result) {
+						session = result;
+					}
+
+					@Override
+					public void failed(Throwable failure) {
+						ready.completeExceptionally(failure);
+					}
+				});
+		}
+
+		private boolean isClosed() {
+			return ready.isCompletedExceptionally() || ((session != null) && session.isClosed());
+		}
+
+		@Override
+		public void onSettings(Session session, SettingsFrame frame) {
+			this.session = session;
+			ready.complete(session);
+		}
+
+		@Override
+		public void onClose(Session session, GoAwayFrame frame) {
+			ready.completeExceptionally(new IOException("HTTP/2 connection closed"));
+			endpoint.closed(this);
+		}
+
+		@Override
+		public void onFailure(Session session, Throwable failure) {
+			ready.completeExceptionally(failure);
+			endpoint.closed(this);
+		}
+
+		private void close() {
+			if (session != null) {
+				session.close(ErrorCode.NO_ERROR.code, null, Callback.NOOP);
+			}
+		}
+
+	}
+
+	private static final class ResponseListener extends Stream.Listener.Adapter {
+
+		private final CompletableFuture<MetaData.Response> response;
+		private final ResponseContent content;
+
+		private ResponseListener() {
+			response = new CompletableFuture<>();
+			content = new ResponseContent();
+		}
+
+		private MetaData.Response awaitResponse() throws IOException {
+			try {
+				return response.get();
+			} catch (ExecutionException exception) {
+				throw new IOException("HTTP/2 request failed", exception.getCause());
+			} catch (InterruptedException exception) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+
+		@Override
+		public void onHeaders(Stream stream, HeadersFrame frame) {
+			MetaData metaData = frame.getMetaData();
+			if (metaData.isResponse()) {
+				// skip interim responses such as 100 Continue
+				if (((MetaData.Response) metaData).getStatus() < 200) {
+					return;
+				}
+				response.complete((MetaData.Response) metaData);
+			}
+			// trailers are dropped
+			if (frame.isEndStream()) {
+				content.end();
+			}
+		}
+
+		@Override
+		public void onData(Stream stream, DataFrame frame, Callback callback) {
+			content.offer(frame.getData(), callback);
+			if (frame.isEndStream()) {
+				content.end();
+			}
+		}
+
+		@Override
+		public void onReset(Stream stream, ResetFrame frame) {
+			fail(new IOException("HTTP/2 stream reset: " +
+				ErrorCode.toString(frame.getError(), null)));
+		}
+
+		@Override
+		public void onFailure(Stream stream, int error, String reason, Throwable failure,
+							  Callback callback) {
+			fail(new IOException("HTTP/2 stream failed: " + reason, failure));
+			callback.succeeded();
+		}
+
+		private void fail(IOException failure) {
+			response.completeExceptionally(failure);
+			content.fail(failure);
+		}
+
+	}
+
+	/**
+	 * Response body fed by data frames. A frame is acknowledged only once it has been read, so
+	 * that a slow reader holds back the upstream through flow control rather than piling up data.
+	 */
+	private static final class ResponseContent extends InputStream {
+
+		private static final Chunk END = new Chunk(null, Callback.NOOP);
+
+		private final BlockingQueue<Chunk> chunks;
+		private volatile Stream stream;
+		private volatile IOException failure;
+		private Chunk current;
+		private boolean ended;
+
+		// frames that arrive once closed are acknowledged at once, so that the session keeps its
+		// flow-control window
+		private volatile boolean closed;
+
+		private ResponseContent() {
+			chunks = new LinkedBlockingQueue<>();
+		}
+
+		private void offer(ByteBuffer data, Callback callback) {
+			chunks.add(new Chunk(data, callback));
+			// checked after adding, so that a frame racing with close() is never left behind
+			if (closed) {
+				drain();
+			}
+		}
+
+		private void end() {
+			chunks.add(END);
+		}
+
+		private void fail(IOException failure) {
+			this.failure = failure;
+			chunks.add(END);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] bytes = new byte[1];
+			return (read(bytes, 0, 1) < 0) ? -1 : (bytes[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			while ((current == null) || !current.data.hasRemaining()) {
+				if (ended) {
+					return -1;
+				}
+				if (current != null) {
+					current.callback.succeeded();
+					current = null;
+				}
+				Chunk chunk;
+				try {
+					chunk = chunks.take();
+				} catch (InterruptedException exception) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				if (chunk == END) {
+					if (failure != null) {
+						throw failure;
+					}
+					ended = true;
+				} else {
+					current = chunk;
+				}
+			}
+			int read = Math.min(length, current.data.remaining());
+			current.data.get(bytes, offset, read);
+			return read;
+		}
+
+		/**
+		 * Cancel the stream if the body has not been read to the end.
+		 */
+		@Override
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (!ended && (failure == null) && (stream != null)) {
+				stream.reset(new ResetFrame(stream.getId(), ErrorCode.CANCEL_STREAM_ERROR.code),
+					Callback.NOOP);
+			}
+			if (current != null) {
+				current.callback.succeeded();
+				current = null;
+			}
+			drain();
+		}
+
+		private void drain() {
+			for (Chunk chunk; (chunk = chunks.poll()) != null; ) {
+				chunk.callback.succeeded();
+			}
+		}
+
+	}
+
+	private static final class Chunk {
+
+		private final ByteBuffer data;
+		private final Callback callback;
+
+		private Chunk(ByteBuffer data, Callback callback) {
+			this.data = data;
+			this.callback = callback;
+		}
+
+	}
+
+}
@@ -0,0 +1,84 @@
+package com.bradchen.jwormhole.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in microseconds. Buckets are logarithmic with 8 linear
+ * sub-buckets each, so recorded values are accurate to within 12.5%.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+	private static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - 4) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts;
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKET_COUNT);
+	}
+
+	public void record(long nanos) {
+		counts.incrementAndGet(indexOf(Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos))));
+	}
+
+	private static int indexOf(long micros) {
+		if (micros < LINEAR_LIMIT) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_LIMIT + (exponent - 4) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long upperBoundOf(int index) {
+		if (index < LINEAR_LIMIT) {
+			return index;
+		}
+		int exponent = (index - LINEAR_LIMIT) / SUB_BUCKETS + 4;
+		int subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Value in microseconds below which the given fraction (0 to 1) of the recorded durations fall.
+	 */
+	public long getPercentile(double fraction) {
+		long[] snapshot = new long[BUCKET_COUNT];
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(fraction * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += snapshot[i];
+			if ((seen >= rank) && (snapshot[i] > 0)) {
+				return upperBoundOf(i);
+			}
+		}
+		return upperBoundOf(BUCKET_COUNT - 1);
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts.set(i, 0);
+		}
+	}
+
+}
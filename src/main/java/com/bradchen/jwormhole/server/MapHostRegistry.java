@@ -0,0 +1,69 @@
+package com.bradchen.jwormhole.server;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Host registry that keeps one {@link Host} object per host in a map.
+ */
+public final class MapHostRegistry implements HostRegistry {
+
+	private final Map<String, Host> hosts;
+
+	public MapHostRegistry() {
+		hosts = new ConcurrentHashMap<>();
+	}
+
+	@Override
+	public Host get(String name) {
+		return hosts.get(name);
+	}
+
+	@Override
+	public boolean contains(String name) {
+		return hosts.containsKey(name);
+	}
+
+	@Override
+	public Host add(String name, int port, long timeout) {
+		Host host = new Host(name, port, timeout);
+		hosts.put(name, host);
+		return host;
+	}
+
+	@Override
+	public boolean keepAlive(String name) {
+		Host host = hosts.get(name);
+		return (host != null) && host.keepAlive();
+	}
+
+	@Override
+	public boolean remove(Host host) {
+		return hosts.remove(host.getName(), host);
+	}
+
+	@Override
+	public void removeExpired(Predicate<Host> retained, Consumer<Host> removed) {
+		hosts.values().removeIf(host -> {
+			if (host.isExpired() && !retained.test(host)) {
+				removed.accept(host);
+				return true;
+			}
+			return false;
+		});
+	}
+
+	@Override
+	public int size() {
+		return hosts.size();
+	}
+
+	@Override
+	public Map<String, Host> getHosts() {
+		return Collections.unmodifiableMap(hosts);
+	}
+
+}
@@ -1,34 +1,48 @@
 package com.bradchen.jwormhole.server;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.http.HttpClientConnection;
 import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.client.utils.URIUtils;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
 import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
 
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.BitSet;
 import java.util.Enumeration;
 import java.util.Formatter;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handle proxy request from web client. Code extracted from the original ProxyServlet by MITRE.
  */
-public class ProxyRequestHandler {
+public class ProxyRequestHandler implements SettingsListener {
 
 	private static final String X_FORWARDED_FOR_HEADER = "X-Forwarded-For";
 	private static final String X_FORWARDED_HEADER = "X-Forwarded-";
+	private static final String TIMINGS_ATTRIBUTE = "jwormhole.timings";
+	private static final String STICKY_COOKIE_NAME = "jwormhole_upstream";
 	private static final BitSet ASCII_QUERY_CHARS;
 
 	static {
@@ -46,33 +60,111 @@ public class ProxyRequestHandler {
 		ASCII_QUERY_CHARS.set((int) '%'); // leave existing percent escapes in place
 	}
 
-	private final Settings settings;
+	private volatile Settings settings;
 	private final HostManager hostManager;
+	private final TrafficManager trafficManager;
+	private final Http2Upstream http2Upstream;
+	private final PoolingHttpClientConnectionManager connectionManager;
 	private final CloseableHttpClient proxyClient;
 
-	public ProxyRequestHandler(Settings settings, HostManager hostManager) {
+	/**
+	 * @param http2Upstream client for upstreams that speak HTTP/2; null to speak HTTP/1.1 only
+	 */
+	public ProxyRequestHandler(Settings settings, HostManager hostManager,
+							   TrafficManager trafficManager, Http2Upstream http2Upstream) {
 		this.hostManager = hostManager;
+		this.trafficManager = trafficManager;
+		this.http2Upstream = http2Upstream;
 		this.settings = settings;
-		this.proxyClient = HttpClients.createDefault();
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(settings.getProxyMaxConnections());
+		connectionManager.setDefaultMaxPerRoute(settings.getProxyMaxConnectionsPerHost());
+		this.proxyClient = HttpClients.custom()
+			.setConnectionManager(connectionManager)
+			.setRequestExecutor(new TimedRequestExecutor())
+			.build();
 	}
 
-	public String getTargetUri(HttpServletRequest servletRequest) {
+	/**
+	 * Pool limits change in place; open connections are kept.
+	 */
+	@Override
+	public void applySettings(Settings newSettings) {
+		settings = newSettings;
+		connectionManager.setMaxTotal(newSettings.getProxyMaxConnections());
+		connectionManager.setDefaultMaxPerRoute(newSettings.getProxyMaxConnectionsPerHost());
+	}
+
+	public PoolingHttpClientConnectionManager getConnectionManager() {
+		return connectionManager;
+	}
+
+	/**
+	 * Find the host and upstream port that a request should go to. The returned target must be
+	 * passed to {@link #release(ProxyTarget)} once the response is sent.
+	 *
+	 * @return target, or null if no host can be found
+	 */
+	public ProxyTarget route(HttpServletRequest servletRequest) {
 		Host host = hostManager.getHost(servletRequest.getHeader(HttpHeaders.HOST));
-		return (host == null) ? null : "http://localhost:" + host.getPort() + "/";
+		if (host == null) {
+			return null;
+		}
+
+		UpstreamPool pool = hostManager.getUpstreamPool(host);
+		if (pool == null) {
+			return new ProxyTarget(host, null, null, false);
+		}
+
+		int stickyPort = settings.isStickySessions() ? getStickyPort(servletRequest) : 0;
+		UpstreamPool.Upstream upstream = pool.select(stickyPort);
+		if (upstream == null) {
+			return new ProxyTarget(host, null, null, false);
+		}
+		upstream.acquire();
+		return new ProxyTarget(host, pool, upstream, settings.isStickySessions() &&
+			(upstream.getPort() != stickyPort));
+	}
+
+	private static int getStickyPort(HttpServletRequest servletRequest) {
+		Cookie[] cookies = servletRequest.getCookies();
+		if (cookies == null) {
+			return 0;
+		}
+		for (Cookie cookie : cookies) {
+			if (STICKY_COOKIE_NAME.equals(cookie.getName())) {
+				return NumberUtils.toInt(cookie.getValue());
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Tell the client which upstream port to stick to, if sticky sessions are on.
+	 */
+	public void setStickyCookie(ProxyTarget target, HttpServletResponse servletResponse) {
+		if (target.isStickyCookieSet()) {
+			Cookie cookie = new Cookie(STICKY_COOKIE_NAME, Integer.toString(target.getPort()));
+			cookie.setPath("/");
+			cookie.setHttpOnly(true);
+			servletResponse.addCookie(cookie);
+		}
 	}
 
-	public HttpResponse handle(HttpServletRequest servletRequest) throws IOException {
+	public void release(ProxyTarget target) {
+		if (target.getUpstream() != null) {
+			target.getUpstream().release();
+		}
+	}
+
+	public HttpResponse handle(HttpServletRequest servletRequest, ProxyTarget target,
+							   RequestTimings timings) throws IOException {
 		HttpRequest proxyRequest = null;
 		try {
 			// Make the Request
 			// note: we won't transfer the protocol version because I'm not sure it would truly be
 			// compatible
-			String targetUriString = getTargetUri(servletRequest);
-			if (targetUriString == null) {
-				return null;
-			}
-
-			URI targetUri = new URI(targetUriString);
+			URI targetUri = new URI(target.getUri());
 			String method = servletRequest.getMethod();
 			String proxyRequestUri = rewriteUrlFromRequest(targetUri, servletRequest);
 
@@ -85,7 +177,8 @@ public class ProxyRequestHandler {
 				// Add the input entity (streamed)
 				// note: we don't bother ensuring we close the servletInputStream since the
 				// container handles it
-				eProxyRequest.setEntity(new InputStreamEntity(servletRequest.getInputStream(),
+				eProxyRequest.setEntity(new InputStreamEntity(new ClientInputStream(
+					trafficManager.meterRequest(target.getHost(), servletRequest.getInputStream())),
 					servletRequest.getContentLength()));
 				proxyRequest = eProxyRequest;
 			} else {
@@ -94,20 +187,61 @@ public class ProxyRequestHandler {
 
 			copyRequestHeaders(targetUri, servletRequest, proxyRequest);
 			setXForwardedForHeader(servletRequest, proxyRequest);
-			return proxyClient.execute(URIUtils.extractHost(targetUri), proxyRequest);
+			if (http2Upstream != null) {
+				HttpResponse proxyResponse = http2Upstream.execute(target.getHost(),
+					target.getPort(), proxyRequest, timings);
+				if (proxyResponse != null) {
+					return proxyResponse;
+				}
+			}
+			HttpClientContext context = HttpClientContext.create();
+			context.setAttribute(TIMINGS_ATTRIBUTE, timings);
+			return proxyClient.execute(URIUtils.extractHost(targetUri), proxyRequest, context);
 		} catch (URISyntaxException ignored) {
 			return null;
 		} catch (IOException exception) {
-			if (proxyRequest instanceof AbortableHttpRequest) {
-				AbortableHttpRequest abortableHttpRequest = (AbortableHttpRequest) proxyRequest;
-				abortableHttpRequest.abort();
+			if (isClientFailure(exception)) {
+				// the client went away mid-upload; the tunnel is fine
+				abort(proxyRequest);
+				throw exception;
+			}
+
+			// take a failing tunnel out of rotation; the other ports of the host keep serving
+			if (target.getUpstream() != null) {
+				target.getUpstream().eject(TimeUnit.SECONDS.toMillis(
+					settings.getUpstreamEjectionTime()));
 			}
+			hostManager.reportUnhealthy(target.getHost(), target.getPort());
+			abort(proxyRequest);
 			throw exception;
 		}
 	}
 
+	private static void abort(HttpRequest proxyRequest) {
+		if (proxyRequest instanceof AbortableHttpRequest) {
+			AbortableHttpRequest abortableHttpRequest = (AbortableHttpRequest) proxyRequest;
+			abortableHttpRequest.abort();
+		}
+	}
+
+	/**
+	 * Whether a failure came from reading the client's request body rather than from the upstream.
+	 * HttpClient may wrap it, so the causes are searched too.
+	 */
+	private static boolean isClientFailure(Throwable exception) {
+		for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+			if (cause instanceof ClientInputException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public void shutdown() {
 		IOUtils.closeQuietly(proxyClient);
+		if (http2Upstream != null) {
+			http2Upstream.shutdown();
+		}
 	}
 
 	/**
@@ -234,4 +368,61 @@ public class ProxyRequestHandler {
 		return outBuf != null ? outBuf : in;
 	}
 
+	/**
+	 * Request body read from the client, tagging read failures so that they are not blamed on the
+	 * upstream.
+	 */
+	private static final class ClientInputStream extends ProxyInputStream {
+
+		private ClientInputStream(InputStream inputStream) {
+			super(inputStream);
+		}
+
+		@Override
+		protected void handleIOException(IOException exception) throws IOException {
+			throw new ClientInputException(exception);
+		}
+
+	}
+
+	private static final class ClientInputException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private ClientInputException(IOException cause) {
+			super("Unable to read request body from client", cause);
+		}
+
+	}
+
+	/**
+	 * Marks the time at which a connection to the host is ready, and the time at which the response
+	 * head arrives.
+	 */
+	private static final class TimedRequestExecutor extends HttpRequestExecutor {
+
+		@Override
+		public HttpResponse execute(HttpRequest request, HttpClientConnection conn,
+									HttpContext context) throws IOException, HttpException {
+			RequestTimings timings = (RequestTimings) context.getAttribute(TIMINGS_ATTRIBUTE);
+			if (timings != null) {
+				timings.markConnected();
+			}
+			return super.execute(request, conn, context);
+		}
+
+		@Override
+		protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn,
+												 HttpContext context)
+				throws HttpException, IOException {
+			HttpResponse response = super.doReceiveResponse(request, conn, context);
+			RequestTimings timings = (RequestTimings) context.getAttribute(TIMINGS_ATTRIBUTE);
+			if (timings != null) {
+				timings.markFirstByte();
+			}
+			return response;
+		}
+
+	}
+
 }
@@ -20,6 +20,7 @@ package com.bradchen.jwormhole.server;
  */
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
@@ -35,12 +36,9 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An HTTP reverse proxy/gateway servlet. It is designed to be extended for customization
@@ -60,12 +58,6 @@ import java.util.Properties;
 @SuppressWarnings("serial")
 public final class ProxyServlet extends GenericServlet {
 
-	// in class path
-	private static final String DEFAULT_SETTINGS_FILE = "settings.default.properties";
-
-	// relative to $HOME
-	private static final String OVERRIDE_SETTINGS_FILE = ".jwormhole/server.properties";
-
 	/**
 	 * These are the "hop-by-hop" headers that should not be copied.
 	 * http://www.w3.org/Protocols/rfc2616/rfc2616-sec13.html
@@ -87,58 +79,73 @@ public final class ProxyServlet extends GenericServlet {
 
 	private HostManager hostManager;
 	private ProxyRequestHandler proxyRequestHandler;
+	private TrafficManager trafficManager;
+	private HostWarmer hostWarmer;
+	private Subscriptions subscriptions;
 	private Controller controller;
+	private AccessLog accessLog;
+	private ResponseBuffer responseBuffer;
+	private RequestStatistics requestStatistics;
+	private SettingsManager settingsManager;
 
 	@Override
 	public void init(ServletConfig servletConfig) throws ServletException {
 		try {
-			Settings settings = new Settings(readDefaultSettings(), readOverrideSettings());
+			settingsManager = new SettingsManager();
+			Settings settings = settingsManager.getSettings();
 			hostManager = new HostManager(settings);
-			proxyRequestHandler = new ProxyRequestHandler(settings, hostManager);
-			controller = new Controller(settings, hostManager);
+			settingsManager.addListener(hostManager);
+			trafficManager = new TrafficManager(settings);
+			hostManager.addListener(trafficManager);
+			settingsManager.addListener(trafficManager);
+			Http2Upstream http2Upstream = null;
+			if (settings.isUpstreamHttp2Enabled()) {
+				http2Upstream = new Http2Upstream(settings);
+				hostManager.addListener(http2Upstream);
+				settingsManager.addListener(http2Upstream);
+			}
+			proxyRequestHandler = new ProxyRequestHandler(settings, hostManager, trafficManager,
+				http2Upstream);
+			settingsManager.addListener(proxyRequestHandler);
+			requestStatistics = new RequestStatistics(settings);
+			hostWarmer = new HostWarmer(settings, proxyRequestHandler.getConnectionManager(),
+				http2Upstream);
+			hostManager.addListener(hostWarmer);
+			settingsManager.addListener(hostWarmer);
+			subscriptions = new Subscriptions(settings, hostManager);
+			hostManager.addListener(subscriptions);
+			settingsManager.addListener(subscriptions);
+			controller = new Controller(settingsManager, hostManager, requestStatistics, hostWarmer,
+				subscriptions, trafficManager);
 			controller.run();
+			if (settings.isAccessLogEnabled()) {
+				accessLog = new AccessLog(settings);
+			}
+			if (settings.isResponseBufferingEnabled()) {
+				responseBuffer = new ResponseBuffer(settings);
+				settingsManager.addListener(responseBuffer);
+			}
+			settingsManager.watch();
 		} catch (IOException exception) {
 			throw new ServletException(exception);
 		}
 	}
 
-	private static Properties readDefaultSettings() throws IOException {
-		ClassLoader tcl = Thread.currentThread().getContextClassLoader();
-		InputStream inputStream = null;
-		try {
-			inputStream = tcl.getResourceAsStream(DEFAULT_SETTINGS_FILE);
-			return readPropertiesFile(inputStream);
-		} finally {
-			IOUtils.closeQuietly(inputStream);
-		}
-	}
-
-	private static Properties readOverrideSettings() throws IOException {
-		File file = new File(System.getenv("HOME") + "/" + OVERRIDE_SETTINGS_FILE);
-		if (!file.exists()) {
-			return null;
-		}
-
-		InputStream inputStream = null;
-		try {
-			inputStream = new FileInputStream(file);
-			return readPropertiesFile(inputStream);
-		} finally {
-			IOUtils.closeQuietly(inputStream);
-		}
-	}
-
-	private static Properties readPropertiesFile(InputStream inputStream) throws IOException {
-		Properties properties = new Properties();
-		properties.load(inputStream);
-		return properties;
-	}
-
 	@Override
 	public void destroy() {
+		controller.shutdown();
+		settingsManager.shutdown();
+		// let requests in flight finish before their connections are closed
+		hostManager.drainNode(TimeUnit.SECONDS.toMillis(
+			settingsManager.getSettings().getHostDrainTimeout()));
+		// probes lease from the connection pool of the request handler
+		hostWarmer.shutdown();
 		proxyRequestHandler.shutdown();
 		hostManager.shutdown();
-		controller.shutdown();
+		subscriptions.shutdown();
+		if (accessLog != null) {
+			accessLog.shutdown();
+		}
 	}
 
 	@Override
@@ -146,26 +153,57 @@ public final class ProxyServlet extends GenericServlet {
 			throws ServletException, IOException {
 		HttpServletRequest servletRequest = (HttpServletRequest)req;
 		HttpServletResponse servletResponse = (HttpServletResponse)res;
+		RequestTimings timings = new RequestTimings();
+		int statusCode = 0;
+		long bytes = 0;
+
+		ProxyTarget target = proxyRequestHandler.route(servletRequest);
+		timings.markRouted();
+		Host host = (target == null) ? null : target.getHost();
+		HostManager.RequestTicket ticket = null;
 
 		HttpResponse proxyResponse = null;
 		try {
+			// no host can be found
+			if (target == null) {
+				statusCode = HttpServletResponse.SC_NOT_FOUND;
+				servletResponse.sendError(statusCode);
+				return;
+			}
+
+			// the host is going away; fail fast so that the client can retry
+			ticket = hostManager.startRequest(host);
+			if (ticket == null) {
+				statusCode = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+				servletResponse.setHeader(HttpHeaders.RETRY_AFTER, "1");
+				servletResponse.sendError(statusCode);
+				return;
+			}
+
 			// get response from proxied host
 			try {
-				proxyResponse = proxyRequestHandler.handle(servletRequest);
+				proxyResponse = proxyRequestHandler.handle(servletRequest, target, timings);
 			} catch (IOException exception) {
-				servletResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				statusCode = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+				servletResponse.sendError(statusCode);
 				return;
 			}
 
-			// no host can be found
 			if (proxyResponse == null) {
-				servletResponse.sendError(HttpServletResponse.SC_NOT_FOUND);
+				statusCode = HttpServletResponse.SC_NOT_FOUND;
+				servletResponse.sendError(statusCode);
 				return;
 			}
 
+			if (settingsManager.getSettings().isServerTimingHeaderSent()) {
+				servletResponse.setHeader(RequestTimings.SERVER_TIMING_HEADER,
+					timings.toServerTimingHeader());
+			}
+			proxyRequestHandler.setStickyCookie(target, servletResponse);
+
 			// send response back to client
-			String targetUri = proxyRequestHandler.getTargetUri(servletRequest);
-			int statusCode = proxyResponse.getStatusLine().getStatusCode();
+			String targetUri = target.getUri();
+			statusCode = proxyResponse.getStatusLine().getStatusCode();
 			if (doResponseRedirectOrNotModifiedLogic(servletRequest, servletResponse, proxyResponse,
 					statusCode, targetUri)) {
 				// the response is already "committed" now without any body to send
@@ -178,13 +216,40 @@ public final class ProxyServlet extends GenericServlet {
 			copyResponseHeaders(proxyResponse, servletResponse);
 
 			// Send the content to the client
-			copyResponseEntity(proxyResponse, servletResponse);
+			if ((responseBuffer != null) && responseBuffer.isBuffered(proxyResponse)) {
+				ResponseBuffer.Content content = responseBuffer.drain(proxyResponse.getEntity());
+				try (OutputStream outputStream = trafficManager.meterResponse(host,
+						servletResponse.getOutputStream())) {
+					// the upstream connection is back in the pool; feed the client at its own pace
+					proxyRequestHandler.release(target);
+					target = null;
+					bytes = content.writeTo(outputStream);
+				} finally {
+					content.discard();
+				}
+			} else {
+				bytes = copyResponseEntity(proxyResponse, servletResponse, host);
+			}
 		} finally {
 			// make sure the entire entity was consumed, so the connection is released
 			if (proxyResponse != null) {
 				consumeQuietly(proxyResponse.getEntity());
 			}
+			if (target != null) {
+				proxyRequestHandler.release(target);
+			}
 			IOUtils.closeQuietly(servletResponse.getOutputStream());
+			if (ticket != null) {
+				hostManager.endRequest(ticket);
+			}
+			timings.markEnd();
+			String hostHeader = servletRequest.getHeader(HttpHeaders.HOST);
+			requestStatistics.record(hostHeader, servletRequest.getMethod(),
+				servletRequest.getRequestURI(), statusCode, timings);
+			if (accessLog != null) {
+				accessLog.log(hostHeader, servletRequest.getMethod(), servletRequest.getRequestURI(),
+					statusCode, bytes, timings.getStartTime(), timings.getTotalDuration());
+			}
 		}
 	}
 
@@ -246,13 +311,21 @@ public final class ProxyServlet extends GenericServlet {
 
 	/**
 	 * Copy response body data (the entity) from the proxy to the servlet client.
+	 *
+	 * @return number of bytes sent to the client
 	 */
-	private void copyResponseEntity(HttpResponse proxyResponse, HttpServletResponse servletResponse)
-			throws IOException {
+	private long copyResponseEntity(HttpResponse proxyResponse, HttpServletResponse servletResponse,
+									Host host) throws IOException {
 		HttpEntity entity = proxyResponse.getEntity();
-		if (entity != null) {
-			OutputStream servletOutputStream = servletResponse.getOutputStream();
-			entity.writeTo(servletOutputStream);
+		if (entity == null) {
+			return 0;
+		}
+
+		try (OutputStream outputStream = trafficManager.meterResponse(host,
+				servletResponse.getOutputStream())) {
+			CountingOutputStream countingOutputStream = new CountingOutputStream(outputStream);
+			entity.writeTo(countingOutputStream);
+			return countingOutputStream.getByteCount();
 		}
 	}
 
@@ -0,0 +1,57 @@
+package com.bradchen.jwormhole.server;
+
+/**
+ * Host and upstream port that a proxied request is sent to.
+ */
+public final class ProxyTarget {
+
+	private final Host host;
+	private final UpstreamPool pool;
+	private final UpstreamPool.Upstream upstream;
+	private final boolean stickyCookieSet;
+
+	public ProxyTarget(Host host, UpstreamPool pool, UpstreamPool.Upstream upstream,
+					   boolean stickyCookieSet) {
+		this.host = host;
+		this.pool = pool;
+		this.upstream = upstream;
+		this.stickyCookieSet = stickyCookieSet;
+	}
+
+	public Host getHost() {
+		return host;
+	}
+
+	/**
+	 * Upstream pool of the host; null if the host has a single port.
+	 */
+	public UpstreamPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Selected upstream; null if the host has a single port.
+	 */
+	public UpstreamPool.Upstream getUpstream() {
+		return upstream;
+	}
+
+	public int getPort() {
+		return (upstream == null) ? host.getPort() : upstream.getPort();
+	}
+
+	/**
+	 * Target URI without a trailing slash, as the request path is appended to it as is.
+	 */
+	public String getUri() {
+		return "http://localhost:" + getPort();
+	}
+
+	/**
+	 * Whether the client needs to be told to stick to the selected port.
+	 */
+	public boolean isStickyCookieSet() {
+		return stickyCookieSet;
+	}
+
+}
@@ -0,0 +1,155 @@
+package com.bradchen.jwormhole.server;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collect phase timings of proxied requests into histograms and keep the slowest requests.
+ */
+public class RequestStatistics {
+
+	private static final Comparator<SlowRequest> BY_DURATION =
+		Comparator.comparingLong(request -> request.timings.getTotalDuration());
+
+	private final LatencyHistogram routeHistogram;
+	private final LatencyHistogram connectHistogram;
+	private final LatencyHistogram waitHistogram;
+	private final LatencyHistogram bodyHistogram;
+	private final LatencyHistogram totalHistogram;
+	private final int slowRequestCount;
+	private final PriorityQueue<SlowRequest> slowRequests;
+	private volatile long slowRequestThreshold;
+
+	public RequestStatistics(Settings settings) {
+		routeHistogram = new LatencyHistogram();
+		connectHistogram = new LatencyHistogram();
+		waitHistogram = new LatencyHistogram();
+		bodyHistogram = new LatencyHistogram();
+		totalHistogram = new LatencyHistogram();
+		slowRequestCount = settings.getSlowRequestCount();
+		slowRequests = new PriorityQueue<>(Math.max(1, slowRequestCount), BY_DURATION);
+	}
+
+	public void record(String host, String method, String path, int status,
+					   RequestTimings timings) {
+		routeHistogram.record(timings.getRouteDuration());
+		if (timings.getConnectDuration() > 0) {
+			connectHistogram.record(timings.getConnectDuration());
+			waitHistogram.record(timings.getWaitDuration());
+			bodyHistogram.record(timings.getBodyDuration());
+		}
+		totalHistogram.record(timings.getTotalDuration());
+
+		// most requests are faster than the slowest ones kept, so avoid taking the lock for them
+		if ((slowRequestCount == 0) || (timings.getTotalDuration() <= slowRequestThreshold)) {
+			return;
+		}
+		synchronized (slowRequests) {
+			slowRequests.add(new SlowRequest(host, method, path, status, timings));
+			if (slowRequests.size() > slowRequestCount) {
+				slowRequests.poll();
+			}
+			if (slowRequests.size() == slowRequestCount) {
+				slowRequestThreshold = slowRequests.peek().timings.getTotalDuration();
+			}
+		}
+	}
+
+	/**
+	 * Percentiles of each phase in microseconds.
+	 */
+	public String dumpHistograms() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("# phase count p50 p90 p99 p999 (us)\n");
+		appendHistogram(sb, "route", routeHistogram);
+		appendHistogram(sb, "connect", connectHistogram);
+		appendHistogram(sb, "wait", waitHistogram);
+		appendHistogram(sb, "body", bodyHistogram);
+		appendHistogram(sb, "total", totalHistogram);
+		return sb.toString().trim();
+	}
+
+	private static void appendHistogram(StringBuilder sb, String phase,
+										LatencyHistogram histogram) {
+		sb.append(phase);
+		sb.append(" ").append(histogram.getCount());
+		sb.append(" ").append(histogram.getPercentile(0.5));
+		sb.append(" ").append(histogram.getPercentile(0.9));
+		sb.append(" ").append(histogram.getPercentile(0.99));
+		sb.append(" ").append(histogram.getPercentile(0.999));
+		sb.append("\n");
+	}
+
+	/**
+	 * Slowest requests kept so far, slowest first, with phase durations in microseconds.
+	 */
+	public String dumpSlowRequests() {
+		List<SlowRequest> requests;
+		synchronized (slowRequests) {
+			requests = new ArrayList<>(slowRequests);
+		}
+		requests.sort(BY_DURATION.reversed());
+
+		DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		StringBuilder sb = new StringBuilder();
+		for (SlowRequest request : requests) {
+			RequestTimings timings = request.timings;
+			sb.append(dateFormat.format(new Date(timings.getStartTime())));
+			sb.append(" ").append(request.host);
+			sb.append(" ").append(request.method);
+			sb.append(" ").append(request.path);
+			sb.append(" ").append(request.status);
+			sb.append(" total=").append(toMicros(timings.getTotalDuration()));
+			sb.append(" route=").append(toMicros(timings.getRouteDuration()));
+			sb.append(" connect=").append(toMicros(timings.getConnectDuration()));
+			sb.append(" wait=").append(toMicros(timings.getWaitDuration()));
+			sb.append(" body=").append(toMicros(timings.getBodyDuration()));
+			sb.append("\n");
+		}
+		sb.append("# slow requests: ");
+		sb.append(requests.size());
+		return sb.toString();
+	}
+
+	private static long toMicros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	public void reset() {
+		routeHistogram.reset();
+		connectHistogram.reset();
+		waitHistogram.reset();
+		bodyHistogram.reset();
+		totalHistogram.reset();
+		synchronized (slowRequests) {
+			slowRequests.clear();
+			slowRequestThreshold = 0;
+		}
+	}
+
+	private static final class SlowRequest {
+
+		private final String host;
+		private final String method;
+		private final String path;
+		private final int status;
+		private final RequestTimings timings;
+
+		private SlowRequest(String host, String method, String path, int status,
+							RequestTimings timings) {
+			this.host = host;
+			this.method = method;
+			this.path = path;
+			this.status = status;
+			this.timings = timings;
+		}
+
+	}
+
+}
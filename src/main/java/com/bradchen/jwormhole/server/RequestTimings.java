@@ -0,0 +1,87 @@
+package com.bradchen.jwormhole.server;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Monotonic timestamps of the phases of one proxied request. A phase that was never reached keeps
+ * a timestamp of 0.
+ */
+public final class RequestTimings {
+
+	public static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+	private final long startTime;
+	private final long start;
+	private long routed;
+	private long connected;
+	private long firstByte;
+	private long end;
+
+	public RequestTimings() {
+		startTime = System.currentTimeMillis();
+		start = System.nanoTime();
+	}
+
+	public void markRouted() {
+		routed = System.nanoTime();
+	}
+
+	public void markConnected() {
+		connected = System.nanoTime();
+	}
+
+	public void markFirstByte() {
+		firstByte = System.nanoTime();
+	}
+
+	public void markEnd() {
+		end = System.nanoTime();
+	}
+
+	/**
+	 * Wall clock time at which the request started, in milliseconds.
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public long getRouteDuration() {
+		return duration(start, routed);
+	}
+
+	public long getConnectDuration() {
+		return duration(routed, connected);
+	}
+
+	public long getWaitDuration() {
+		return duration(connected, firstByte);
+	}
+
+	public long getBodyDuration() {
+		return duration(firstByte, end);
+	}
+
+	public long getTotalDuration() {
+		return duration(start, end);
+	}
+
+	private static long duration(long from, long to) {
+		return ((from == 0) || (to == 0)) ? 0 : (to - from);
+	}
+
+	/**
+	 * Value of the Server-Timing header; the body phase is left out since the headers are sent
+	 * before it starts.
+	 */
+	public String toServerTimingHeader() {
+		return String.format(Locale.ROOT, "route;dur=%.3f, connect;dur=%.3f, wait;dur=%.3f",
+			toMillis(getRouteDuration()), toMillis(getConnectDuration()),
+			toMillis(getWaitDuration()));
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+}
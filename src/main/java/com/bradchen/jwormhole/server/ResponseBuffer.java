@@ -0,0 +1,129 @@
+package com.bradchen.jwormhole.server;
+
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffer large upstream responses so that a slow client does not hold on to the upstream
+ * connection and the tunnel: the entity is drained as fast as the tunnel allows, after which the
+ * connection goes back to the pool and the client is fed from the buffer. Each response is kept in
+ * memory up to a limit and spills to a temporary file beyond it; once the memory shared by all
+ * buffered responses is used up, responses go to disk right away.
+ */
+public class ResponseBuffer implements SettingsListener {
+
+	private static final String FILE_PREFIX = "jwormhole-response-";
+	private static final String FILE_SUFFIX = ".tmp";
+
+	private final File directory;
+	private final AtomicLong memoryInUse;
+	private volatile long minLength;
+	private volatile int memoryPerResponse;
+	private volatile long totalMemory;
+
+	public ResponseBuffer(Settings settings) {
+		minLength = settings.getResponseBufferingMinLength() * 1024L;
+		memoryPerResponse = settings.getResponseBufferMemory() * 1024;
+		totalMemory = settings.getResponseBufferTotalMemory() * 1024L * 1024L;
+		directory = getDirectory(settings);
+		memoryInUse = new AtomicLong();
+	}
+
+	/**
+	 * Memory already held by buffered responses stays accounted for when the limits change.
+	 */
+	@Override
+	public void applySettings(Settings settings) {
+		minLength = settings.getResponseBufferingMinLength() * 1024L;
+		memoryPerResponse = settings.getResponseBufferMemory() * 1024;
+		totalMemory = settings.getResponseBufferTotalMemory() * 1024L * 1024L;
+	}
+
+	private static File getDirectory(Settings settings) {
+		if (settings.getResponseBufferDirectory().isEmpty()) {
+			return new File(System.getProperty("java.io.tmpdir"));
+		}
+		return new File(settings.getResponseBufferDirectory());
+	}
+
+	/**
+	 * Whether a response should be buffered. Responses without a content length are streamed, as
+	 * they may never end (e.g. server-sent events).
+	 */
+	public boolean isBuffered(HttpResponse response) {
+		HttpEntity entity = response.getEntity();
+		return (entity != null) && (entity.getContentLength() >= minLength);
+	}
+
+	/**
+	 * Read the whole entity into a new buffer. The returned content must be discarded once sent.
+	 */
+	public Content drain(HttpEntity entity) throws IOException {
+		int memory = reserveMemory((int) Math.min(entity.getContentLength(), memoryPerResponse));
+		Content content = new Content(memory);
+		try {
+			entity.writeTo(content.output);
+			content.output.close();
+			return content;
+		} catch (IOException | RuntimeException exception) {
+			content.discard();
+			throw exception;
+		}
+	}
+
+	/**
+	 * @return bytes of memory granted, which is 0 if there is not enough memory left
+	 */
+	private int reserveMemory(int memory) {
+		long inUse;
+		do {
+			inUse = memoryInUse.get();
+			if (inUse + memory > totalMemory) {
+				return 0;
+			}
+		} while (!memoryInUse.compareAndSet(inUse, inUse + memory));
+		return memory;
+	}
+
+	public final class Content {
+
+		private final int memory;
+		private final DeferredFileOutputStream output;
+
+		private Content(int memory) {
+			this.memory = memory;
+			output = new DeferredFileOutputStream(memory, FILE_PREFIX, FILE_SUFFIX, directory);
+		}
+
+		/**
+		 * @return number of bytes written
+		 */
+		public long writeTo(OutputStream outputStream) throws IOException {
+			output.writeTo(outputStream);
+			return output.getByteCount();
+		}
+
+		/**
+		 * Release the memory or delete the temporary file of the content.
+		 */
+		public void discard() {
+			memoryInUse.addAndGet(-memory);
+			try {
+				output.close();
+			} catch (IOException ignored) {
+			}
+			File file = output.getFile();
+			if ((file != null) && file.exists()) {
+				file.delete();
+			}
+		}
+
+	}
+
+}
@@ -8,13 +8,20 @@ import java.util.regex.Pattern;
  */
 public final class Settings {
 
-	private static final String SETTING_PREFIX = "jwormhole.server.";
+	static final String SETTING_PREFIX = "jwormhole.server.";
 	private static final Pattern PATTERN = Pattern.compile("^[-_.a-z0-9]*$",
 		Pattern.CASE_INSENSITIVE);
+	private static final Pattern DOMAIN_PATTERN = Pattern.compile("^[-_.a-z0-9]*\\*[-_.a-z0-9]*$",
+		Pattern.CASE_INSENSITIVE);
+	private static final Pattern ALIAS_PATTERN = Pattern.compile("^[-_.a-z0-9]+=[-_.a-z0-9]+$",
+		Pattern.CASE_INSENSITIVE);
 
 	private final String domainNamePrefix;
 	private final String domainNameSuffix;
+	private final String domains;
+	private final String domainAliases;
 	private final int controllerPort;
+	private final int controllerMaxConnections;
 	private final int hostPortRangeStart;
 	private final int hostPortRangeEnd;
 	private final int hostNameLength;
@@ -22,11 +29,42 @@ public final class Settings {
 	private final int hostManagerGcInterval;
 	private final boolean ipForwarded;
 	private final boolean urlFragmentSent;
+	private final boolean accessLogEnabled;
+	private final String accessLogDirectory;
+	private final int accessLogBufferSize;
+	private final int accessLogMaxFileSize;
+	private final int accessLogMaxFiles;
+	private final boolean accessLogMemoryMapped;
+	private final boolean serverTimingHeaderSent;
+	private final int slowRequestCount;
+	private final boolean stickySessions;
+	private final int upstreamEjectionTime;
+	private final String hostRegistry;
+	private final int hostRegistryCapacity;
+	private final boolean hostRegistryOffHeap;
+	private final int proxyMaxConnections;
+	private final int proxyMaxConnectionsPerHost;
+	private final int hostWarmupConnections;
+	private final int hostReadinessTimeout;
+	private final boolean responseBufferingEnabled;
+	private final int responseBufferingMinLength;
+	private final int responseBufferMemory;
+	private final int responseBufferTotalMemory;
+	private final String responseBufferDirectory;
+	private final int nodeBandwidth;
+	private final int hostBandwidth;
+	private final int hostDrainTimeout;
+	private final boolean upstreamHttp2Enabled;
+	private final int upstreamHttp2RetryInterval;
 
 	public Settings(Properties defaults, Properties overrides) {
 		domainNamePrefix = getSetting(defaults, overrides, "domainNamePrefix");
 		domainNameSuffix = getSetting(defaults, overrides, "domainNameSuffix");
+		domains = getSetting(defaults, overrides, "domains");
+		domainAliases = getSetting(defaults, overrides, "domainAliases");
 		controllerPort = getSettingInteger(defaults, overrides, "controllerPort");
+		controllerMaxConnections = getSettingInteger(defaults, overrides,
+			"controllerMaxConnections");
 		hostPortRangeStart = getSettingInteger(defaults, overrides, "hostPortRangeStart");
 		hostPortRangeEnd = getSettingInteger(defaults, overrides, "hostPortRangeEnd");
 		hostNameLength = getSettingInteger(defaults, overrides, "hostNameLength");
@@ -34,6 +72,38 @@ public final class Settings {
 		hostManagerGcInterval = getSettingInteger(defaults, overrides, "hostManagerGcInterval");
 		ipForwarded = getSettingBoolean(defaults, overrides, "ipForwarded");
 		urlFragmentSent = getSettingBoolean(defaults, overrides, "urlFragmentSent");
+		accessLogEnabled = getSettingBoolean(defaults, overrides, "accessLogEnabled");
+		accessLogDirectory = getSetting(defaults, overrides, "accessLogDirectory");
+		accessLogBufferSize = getSettingInteger(defaults, overrides, "accessLogBufferSize");
+		accessLogMaxFileSize = getSettingInteger(defaults, overrides, "accessLogMaxFileSize");
+		accessLogMaxFiles = getSettingInteger(defaults, overrides, "accessLogMaxFiles");
+		accessLogMemoryMapped = getSettingBoolean(defaults, overrides, "accessLogMemoryMapped");
+		serverTimingHeaderSent = getSettingBoolean(defaults, overrides, "serverTimingHeaderSent");
+		slowRequestCount = getSettingInteger(defaults, overrides, "slowRequestCount");
+		stickySessions = getSettingBoolean(defaults, overrides, "stickySessions");
+		upstreamEjectionTime = getSettingInteger(defaults, overrides, "upstreamEjectionTime");
+		hostRegistry = getSetting(defaults, overrides, "hostRegistry");
+		hostRegistryCapacity = getSettingInteger(defaults, overrides, "hostRegistryCapacity");
+		hostRegistryOffHeap = getSettingBoolean(defaults, overrides, "hostRegistryOffHeap");
+		proxyMaxConnections = getSettingInteger(defaults, overrides, "proxyMaxConnections");
+		proxyMaxConnectionsPerHost = getSettingInteger(defaults, overrides,
+			"proxyMaxConnectionsPerHost");
+		hostWarmupConnections = getSettingInteger(defaults, overrides, "hostWarmupConnections");
+		hostReadinessTimeout = getSettingInteger(defaults, overrides, "hostReadinessTimeout");
+		responseBufferingEnabled = getSettingBoolean(defaults, overrides,
+			"responseBufferingEnabled");
+		responseBufferingMinLength = getSettingInteger(defaults, overrides,
+			"responseBufferingMinLength");
+		responseBufferMemory = getSettingInteger(defaults, overrides, "responseBufferMemory");
+		responseBufferTotalMemory = getSettingInteger(defaults, overrides,
+			"responseBufferTotalMemory");
+		responseBufferDirectory = getSetting(defaults, overrides, "responseBufferDirectory");
+		nodeBandwidth = getSettingInteger(defaults, overrides, "nodeBandwidth");
+		hostBandwidth = getSettingInteger(defaults, overrides, "hostBandwidth");
+		hostDrainTimeout = getSettingInteger(defaults, overrides, "hostDrainTimeout");
+		upstreamHttp2Enabled = getSettingBoolean(defaults, overrides, "upstreamHttp2Enabled");
+		upstreamHttp2RetryInterval = getSettingInteger(defaults, overrides,
+			"upstreamHttp2RetryInterval");
 		validateSettings();
 	}
 
@@ -41,10 +111,19 @@ public final class Settings {
 		if (!PATTERN.matcher(domainNamePrefix).matches()) {
 			throw new RuntimeException("Invalid url prefix.");
 		}
+		if (!matchesAll(DOMAIN_PATTERN, domains)) {
+			throw new RuntimeException("Invalid domains.");
+		}
+		if (!matchesAll(ALIAS_PATTERN, domainAliases)) {
+			throw new RuntimeException("Invalid domain aliases.");
+		}
 		if ((controllerPort <= 0) ||
 				((controllerPort >= hostPortRangeStart) && (controllerPort <= hostPortRangeEnd))) {
 			throw new RuntimeException("Invalid controller port.");
 		}
+		if (controllerMaxConnections <= 0) {
+			throw new RuntimeException("Invalid controller max connections.");
+		}
 		if ((hostPortRangeStart <= 0) || (hostPortRangeEnd <= 0) ||
 				(hostPortRangeStart >= hostPortRangeEnd)) {
 			throw new RuntimeException("Invalid host port range.");
@@ -58,6 +137,64 @@ public final class Settings {
 		if ((hostManagerGcInterval <= 0) || (hostManagerGcInterval > hostTimeout)) {
 			throw new RuntimeException("Invalid host manager GC period.");
 		}
+		if (accessLogBufferSize <= 0) {
+			throw new RuntimeException("Invalid access log buffer size.");
+		}
+		if ((accessLogMaxFileSize <= 0) || (accessLogMaxFiles <= 0)) {
+			throw new RuntimeException("Invalid access log rotation.");
+		}
+		if (slowRequestCount < 0) {
+			throw new RuntimeException("Invalid slow request count.");
+		}
+		if (upstreamEjectionTime <= 0) {
+			throw new RuntimeException("Invalid upstream ejection time.");
+		}
+		if (!HostManager.MAP_HOST_REGISTRY.equals(hostRegistry) &&
+				!HostManager.COMPACT_HOST_REGISTRY.equals(hostRegistry)) {
+			throw new RuntimeException("Invalid host registry.");
+		}
+		if (hostRegistryCapacity <= 0) {
+			throw new RuntimeException("Invalid host registry capacity.");
+		}
+		if ((proxyMaxConnectionsPerHost <= 0) ||
+				(proxyMaxConnections < proxyMaxConnectionsPerHost)) {
+			throw new RuntimeException("Invalid proxy connection limits.");
+		}
+		if ((hostWarmupConnections < 0) ||
+				(hostWarmupConnections > proxyMaxConnectionsPerHost)) {
+			throw new RuntimeException("Invalid host warmup connections.");
+		}
+		if (hostReadinessTimeout <= 0) {
+			throw new RuntimeException("Invalid host readiness timeout.");
+		}
+		if (responseBufferingMinLength < 0) {
+			throw new RuntimeException("Invalid response buffering min length.");
+		}
+		if ((responseBufferMemory < 0) || (responseBufferMemory > 1024 * 1024) ||
+				(responseBufferTotalMemory < 0)) {
+			throw new RuntimeException("Invalid response buffer memory.");
+		}
+		if ((nodeBandwidth < 0) || (hostBandwidth < 0)) {
+			throw new RuntimeException("Invalid bandwidth.");
+		}
+		if (hostDrainTimeout < 0) {
+			throw new RuntimeException("Invalid host drain timeout.");
+		}
+		if (upstreamHttp2RetryInterval <= 0) {
+			throw new RuntimeException("Invalid upstream HTTP/2 retry interval.");
+		}
+	}
+
+	/**
+	 * Whether every entry of a comma-separated list matches; the list may be empty.
+	 */
+	private static boolean matchesAll(Pattern pattern, String list) {
+		for (String entry : list.split(",")) {
+			if (!entry.trim().isEmpty() && !pattern.matcher(entry.trim()).matches()) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	private static int getSettingInteger(Properties defaults, Properties overrides,
@@ -86,10 +223,22 @@ public final class Settings {
 		return domainNameSuffix;
 	}
 
+	public String getDomains() {
+		return domains;
+	}
+
+	public String getDomainAliases() {
+		return domainAliases;
+	}
+
 	public int getControllerPort() {
 		return controllerPort;
 	}
 
+	public int getControllerMaxConnections() {
+		return controllerMaxConnections;
+	}
+
 	public int getHostPortRangeStart() {
 		return hostPortRangeStart;
 	}
@@ -118,4 +267,112 @@ public final class Settings {
 		return urlFragmentSent;
 	}
 
+	public boolean isAccessLogEnabled() {
+		return accessLogEnabled;
+	}
+
+	public String getAccessLogDirectory() {
+		return accessLogDirectory;
+	}
+
+	public int getAccessLogBufferSize() {
+		return accessLogBufferSize;
+	}
+
+	public int getAccessLogMaxFileSize() {
+		return accessLogMaxFileSize;
+	}
+
+	public int getAccessLogMaxFiles() {
+		return accessLogMaxFiles;
+	}
+
+	public boolean isAccessLogMemoryMapped() {
+		return accessLogMemoryMapped;
+	}
+
+	public boolean isServerTimingHeaderSent() {
+		return serverTimingHeaderSent;
+	}
+
+	public int getSlowRequestCount() {
+		return slowRequestCount;
+	}
+
+	public boolean isStickySessions() {
+		return stickySessions;
+	}
+
+	public int getUpstreamEjectionTime() {
+		return upstreamEjectionTime;
+	}
+
+	public String getHostRegistry() {
+		return hostRegistry;
+	}
+
+	public int getHostRegistryCapacity() {
+		return hostRegistryCapacity;
+	}
+
+	public boolean isHostRegistryOffHeap() {
+		return hostRegistryOffHeap;
+	}
+
+	public int getProxyMaxConnections() {
+		return proxyMaxConnections;
+	}
+
+	public int getProxyMaxConnectionsPerHost() {
+		return proxyMaxConnectionsPerHost;
+	}
+
+	public int getHostWarmupConnections() {
+		return hostWarmupConnections;
+	}
+
+	public int getHostReadinessTimeout() {
+		return hostReadinessTimeout;
+	}
+
+	public boolean isResponseBufferingEnabled() {
+		return responseBufferingEnabled;
+	}
+
+	public int getResponseBufferingMinLength() {
+		return responseBufferingMinLength;
+	}
+
+	public int getResponseBufferMemory() {
+		return responseBufferMemory;
+	}
+
+	public int getResponseBufferTotalMemory() {
+		return responseBufferTotalMemory;
+	}
+
+	public String getResponseBufferDirectory() {
+		return responseBufferDirectory;
+	}
+
+	public int getNodeBandwidth() {
+		return nodeBandwidth;
+	}
+
+	public int getHostBandwidth() {
+		return hostBandwidth;
+	}
+
+	public int getHostDrainTimeout() {
+		return hostDrainTimeout;
+	}
+
+	public boolean isUpstreamHttp2Enabled() {
+		return upstreamHttp2Enabled;
+	}
+
+	public int getUpstreamHttp2RetryInterval() {
+		return upstreamHttp2RetryInterval;
+	}
+
 }
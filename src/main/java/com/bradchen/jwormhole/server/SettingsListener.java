@@ -0,0 +1,14 @@
+package com.bradchen.jwormhole.server;
+
+/**
+ * Notified by {@link SettingsManager} when settings change at runtime.
+ */
+public interface SettingsListener {
+
+	/**
+	 * Apply the settings that can change without a restart. Called with validated settings, one
+	 * change at a time.
+	 */
+	void applySettings(Settings settings);
+
+}
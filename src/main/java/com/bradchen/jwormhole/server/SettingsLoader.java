@@ -0,0 +1,71 @@
+package com.bradchen.jwormhole.server;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Read settings from the default settings in the class path and the override settings file.
+ */
+public final class SettingsLoader {
+
+	// in class path
+	private static final String DEFAULT_SETTINGS_FILE = "settings.default.properties";
+
+	// relative to $HOME
+	private static final String OVERRIDE_SETTINGS_FILE = ".jwormhole/server.properties";
+
+	// system property that points to an override settings file elsewhere
+	private static final String OVERRIDE_SETTINGS_FILE_PROPERTY = "jwormhole.server.settingsFile";
+
+	private SettingsLoader() {
+	}
+
+	public static File getOverrideSettingsFile() {
+		return new File(System.getProperty(OVERRIDE_SETTINGS_FILE_PROPERTY,
+			System.getenv("HOME") + "/" + OVERRIDE_SETTINGS_FILE));
+	}
+
+	static Properties readDefaultSettings() throws IOException {
+		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		if (classLoader == null) {
+			classLoader = SettingsLoader.class.getClassLoader();
+		}
+		InputStream inputStream = null;
+		try {
+			inputStream = classLoader.getResourceAsStream(DEFAULT_SETTINGS_FILE);
+			return readPropertiesFile(inputStream);
+		} finally {
+			IOUtils.closeQuietly(inputStream);
+		}
+	}
+
+	/**
+	 * @return override settings, or null if there is no override settings file
+	 */
+	static Properties readOverrideSettings() throws IOException {
+		File file = getOverrideSettingsFile();
+		if (!file.exists()) {
+			return null;
+		}
+
+		InputStream inputStream = null;
+		try {
+			inputStream = new FileInputStream(file);
+			return readPropertiesFile(inputStream);
+		} finally {
+			IOUtils.closeQuietly(inputStream);
+		}
+	}
+
+	private static Properties readPropertiesFile(InputStream inputStream) throws IOException {
+		Properties properties = new Properties();
+		properties.load(inputStream);
+		return properties;
+	}
+
+}
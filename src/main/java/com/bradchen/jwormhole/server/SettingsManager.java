@@ -0,0 +1,190 @@
+package com.bradchen.jwormhole.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keep the current settings and change them at runtime, either when the override settings file
+ * changes or through the controller. A change is validated as a whole before anything is applied;
+ * invalid changes are rejected and the running settings stay as they are. Settings changed through
+ * the controller take precedence over the settings files until the server restarts.
+ *
+ * <p>Settings that size or create long-lived resources only take effect on restart; see
+ * {@link #isRestartRequired(String)}.
+ */
+public class SettingsManager {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SettingsManager.class);
+
+	// wait for an editor to finish writing the file before reading it
+	private static final long FILE_SETTLE_TIME = 200;
+
+	private static final Set<String> RESTART_SETTINGS = new HashSet<>(Arrays.asList(
+		"controllerPort", "controllerMaxConnections", "hostRegistry", "hostRegistryCapacity",
+		"hostRegistryOffHeap", "accessLogEnabled", "accessLogDirectory", "accessLogBufferSize",
+		"accessLogMaxFileSize", "accessLogMaxFiles", "accessLogMemoryMapped", "slowRequestCount",
+		"responseBufferingEnabled", "responseBufferDirectory", "upstreamHttp2Enabled"));
+
+	private final Properties defaults;
+	private final Properties runtimeOverrides;
+	private final List<SettingsListener> listeners;
+	private Properties fileOverrides;
+	private volatile Settings settings;
+	private WatchService watchService;
+
+	public SettingsManager() throws IOException {
+		defaults = SettingsLoader.readDefaultSettings();
+		fileOverrides = SettingsLoader.readOverrideSettings();
+		runtimeOverrides = new Properties();
+		listeners = new CopyOnWriteArrayList<>();
+		settings = new Settings(defaults, fileOverrides);
+	}
+
+	public Settings getSettings() {
+		return settings;
+	}
+
+	public void addListener(SettingsListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Watch the override settings file and reload it whenever it changes.
+	 */
+	public void watch() {
+		File file = SettingsLoader.getOverrideSettingsFile().getAbsoluteFile();
+		File directory = file.getParentFile();
+		if ((directory == null) || !directory.isDirectory()) {
+			LOGGER.info("Not watching settings file {}; its directory does not exist", file);
+			return;
+		}
+
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			directory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException exception) {
+			LOGGER.warn("Unable to watch settings file " + file, exception);
+			return;
+		}
+
+		Thread thread = new Thread(() -> watchFile(file.toPath().getFileName()),
+			"settings-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void watchFile(Path fileName) {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				boolean changed = false;
+				for (WatchEvent<?> event : key.pollEvents()) {
+					changed |= fileName.equals(event.context());
+				}
+				key.reset();
+				if (changed) {
+					Thread.sleep(FILE_SETTLE_TIME);
+					// coalesce the events of the same write
+					for (WatchKey pending; (pending = watchService.poll()) != null; ) {
+						pending.pollEvents();
+						pending.reset();
+					}
+					try {
+						reload();
+						LOGGER.info("Settings reloaded");
+					} catch (IOException | RuntimeException exception) {
+						LOGGER.warn("Settings file change rejected: {}", exception.getMessage());
+					}
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException ignored) {
+		}
+	}
+
+	/**
+	 * Read the override settings file again and apply it.
+	 */
+	public synchronized void reload() throws IOException {
+		Properties newFileOverrides = SettingsLoader.readOverrideSettings();
+		apply(newFileOverrides, runtimeOverrides);
+		fileOverrides = newFileOverrides;
+	}
+
+	/**
+	 * Change one setting, keyed without the "jwormhole.server." prefix.
+	 *
+	 * @throws IllegalArgumentException if there is no such setting
+	 * @throws RuntimeException if the resulting settings are invalid
+	 */
+	public synchronized void set(String key, String value) {
+		if (!defaults.containsKey(Settings.SETTING_PREFIX + key)) {
+			throw new IllegalArgumentException("Invalid setting: " + key);
+		}
+		Properties newRuntimeOverrides = new Properties();
+		newRuntimeOverrides.putAll(runtimeOverrides);
+		newRuntimeOverrides.setProperty(Settings.SETTING_PREFIX + key, value);
+		apply(fileOverrides, newRuntimeOverrides);
+		runtimeOverrides.setProperty(Settings.SETTING_PREFIX + key, value);
+	}
+
+	/**
+	 * @return current value of a setting, keyed without the "jwormhole.server." prefix, or null if
+	 * there is no such setting
+	 */
+	public synchronized String get(String key) {
+		String fullKey = Settings.SETTING_PREFIX + key;
+		if (runtimeOverrides.containsKey(fullKey)) {
+			return runtimeOverrides.getProperty(fullKey);
+		}
+		if ((fileOverrides != null) && fileOverrides.containsKey(fullKey)) {
+			return fileOverrides.getProperty(fullKey);
+		}
+		return defaults.getProperty(fullKey);
+	}
+
+	public static boolean isRestartRequired(String key) {
+		return RESTART_SETTINGS.contains(key);
+	}
+
+	private void apply(Properties newFileOverrides, Properties newRuntimeOverrides) {
+		Properties overrides = new Properties();
+		if (newFileOverrides != null) {
+			overrides.putAll(newFileOverrides);
+		}
+		overrides.putAll(newRuntimeOverrides);
+
+		// validates everything before any listener sees it
+		Settings newSettings = new Settings(defaults, overrides);
+		settings = newSettings;
+		for (SettingsListener listener : listeners) {
+			listener.applySettings(newSettings);
+		}
+	}
+
+	public void shutdown() {
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+}
@@ -0,0 +1,296 @@
+package com.bradchen.jwormhole.server;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived controller connections that hold the leases of their hosts. While a subscription is
+ * open, its hosts are kept alive without keepHostAlive commands, and the client is sent a line
+ * whenever one of them expires ({@code expired <domain>}), is removed ({@code removed <domain>})
+ * or fails a request ({@code unhealthy <domain> <port>}).
+ *
+ * <p>The connection starts with {@code subscribe <domain> [<domain> ...]} and accepts further
+ * {@code subscribe} and {@code unsubscribe} lines; each is answered with {@code ok} or an error.
+ * Closing the connection ends the subscription, after which the hosts expire as usual.
+ */
+public class Subscriptions implements HostListener, SettingsListener {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(Subscriptions.class);
+	private static final String OK = "ok";
+	private static final int MAX_PENDING_LINES = 1024;
+
+	// queued to wake up the writer of a closed subscription; never a real line
+	private static final String CLOSED = "";
+
+	private final HostManager hostManager;
+	private final Map<String, Subscribers> subscribersByHost;
+	private final Map<String, Long> unhealthyEventTimes;
+	private final Set<Subscription> subscriptions;
+	private final ExecutorService readers;
+	private final ScheduledExecutorService scheduler;
+	private volatile long unhealthyEventInterval;
+	private long renewalInterval;
+	private ScheduledFuture<?> renewalTask;
+
+	public Subscriptions(Settings settings, HostManager hostManager) {
+		this.hostManager = hostManager;
+		// report a failing port at most once per ejection
+		unhealthyEventInterval = TimeUnit.SECONDS.toMillis(settings.getUpstreamEjectionTime());
+		subscribersByHost = new ConcurrentHashMap<>();
+		unhealthyEventTimes = new ConcurrentHashMap<>();
+		subscriptions = new CopyOnWriteArraySet<>();
+		readers = Executors.newCachedThreadPool();
+		scheduler = Executors.newScheduledThreadPool(1);
+		scheduleRenewal(getRenewalInterval(settings));
+	}
+
+	private void scheduleRenewal(long interval) {
+		renewalInterval = interval;
+		renewalTask = scheduler.scheduleAtFixedRate(this::renewLeases, interval, interval,
+			TimeUnit.SECONDS);
+	}
+
+	private static long getRenewalInterval(Settings settings) {
+		return Math.max(1, settings.getHostTimeout() / 2);
+	}
+
+	@Override
+	public synchronized void applySettings(Settings settings) {
+		unhealthyEventInterval = TimeUnit.SECONDS.toMillis(settings.getUpstreamEjectionTime());
+		// never lengthened, as hosts created earlier keep their shorter timeout
+		long interval = getRenewalInterval(settings);
+		if (interval < renewalInterval) {
+			renewalTask.cancel(false);
+			renewLeases();
+			scheduleRenewal(interval);
+		}
+	}
+
+	/**
+	 * Serve a subscription until its connection is closed. Events are written on the calling
+	 * thread; commands from the client are read on another one.
+	 */
+	public void serve(Socket socket, BufferedReader reader, String command) throws IOException {
+		Subscription subscription = new Subscription(socket);
+		subscriptions.add(subscription);
+		try {
+			subscription.send(processCommand(subscription, command));
+			readers.execute(() -> readCommands(subscription, reader));
+			PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+			while (true) {
+				String line = subscription.lines.take();
+				if (line == CLOSED) {
+					break;
+				}
+				writer.write(line + "\n");
+				writer.flush();
+				if (writer.checkError()) {
+					break;
+				}
+			}
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		} finally {
+			close(subscription);
+		}
+	}
+
+	private void readCommands(Subscription subscription, BufferedReader reader) {
+		try {
+			String command;
+			while ((command = reader.readLine()) != null) {
+				subscription.send(processCommand(subscription, command.trim()));
+			}
+		} catch (IOException ignored) {
+		} finally {
+			close(subscription);
+		}
+	}
+
+	private String processCommand(Subscription subscription, String command) {
+		String[] tokens = command.split(" ");
+		boolean subscribe = "subscribe".equals(tokens[0]);
+		if ((!subscribe && !"unsubscribe".equals(tokens[0])) || (tokens.length < 2)) {
+			return "Invalid command: " + command;
+		}
+
+		// resolve every host first, so that a command with an invalid host changes nothing
+		Host[] hosts = new Host[tokens.length];
+		for (int i = 1; i < tokens.length; i++) {
+			hosts[i] = hostManager.getHost(tokens[i]);
+			if (hosts[i] == null) {
+				return "Invalid host: " + tokens[i];
+			}
+		}
+
+		if (!subscribe) {
+			for (int i = 1; i < tokens.length; i++) {
+				unsubscribe(subscription, hosts[i].getName());
+			}
+			return OK;
+		}
+
+		List<String> added = new ArrayList<>();
+		for (int i = 1; i < tokens.length; i++) {
+			Host host = hosts[i];
+			// added within the compute, so that a concurrent unsubscribe cannot drop the
+			// subscribers in between
+			subscribersByHost.compute(host.getName(), (name, subscribers) -> {
+				Subscribers result = (subscribers == null) ? new Subscribers(host) : subscribers;
+				result.subscriptions.add(subscription);
+				return result;
+			});
+			if (subscription.domainNames.put(host.getName(), tokens[i]) == null) {
+				added.add(host.getName());
+			}
+		}
+		for (int i = 1; i < tokens.length; i++) {
+			// start a fresh lease; this also catches a host that went away in the meantime
+			if (!hostManager.keepHostAlive(hosts[i])) {
+				for (String name : added) {
+					unsubscribe(subscription, name);
+				}
+				return "Invalid host: " + tokens[i];
+			}
+		}
+		return OK;
+	}
+
+	private void unsubscribe(Subscription subscription, String name) {
+		subscription.domainNames.remove(name);
+		subscribersByHost.computeIfPresent(name, (key, subscribers) -> {
+			subscribers.subscriptions.remove(subscription);
+			return subscribers.subscriptions.isEmpty() ? null : subscribers;
+		});
+	}
+
+	private void close(Subscription subscription) {
+		if (!subscriptions.remove(subscription)) {
+			return;
+		}
+		for (String name : subscription.domainNames.keySet()) {
+			unsubscribe(subscription, name);
+		}
+		subscription.lines.clear();
+		subscription.lines.offer(CLOSED);
+		IOUtils.closeQuietly(subscription.socket);
+	}
+
+	private void renewLeases() {
+		for (Subscribers subscribers : subscribersByHost.values()) {
+			// an expired host is reported by the GC task of the host manager
+			hostManager.keepHostAlive(subscribers.host);
+		}
+	}
+
+	@Override
+	public void hostRemoved(Host host, boolean expired) {
+		unhealthyEventTimes.keySet().removeIf(key -> key.startsWith(host.getName() + ":"));
+		Subscribers subscribers = subscribersByHost.remove(host.getName());
+		if (subscribers == null) {
+			return;
+		}
+		for (Subscription subscription : subscribers.subscriptions) {
+			String domainName = subscription.domainNames.remove(host.getName());
+			if (domainName != null) {
+				subscription.send((expired ? "expired " : "removed ") + domainName);
+			}
+		}
+	}
+
+	@Override
+	public void hostUnhealthy(Host host, int port) {
+		Subscribers subscribers = subscribersByHost.get(host.getName());
+		if (subscribers == null) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		String key = host.getName() + ":" + port;
+		Long lastEventTime = unhealthyEventTimes.get(key);
+		if ((lastEventTime != null) && (now - lastEventTime < unhealthyEventInterval)) {
+			return;
+		}
+		boolean claimed = (lastEventTime == null)
+			? (unhealthyEventTimes.putIfAbsent(key, now) == null)
+			: unhealthyEventTimes.replace(key, lastEventTime, now);
+		if (!claimed) {
+			// reported by a concurrent request
+			return;
+		}
+		for (Subscription subscription : subscribers.subscriptions) {
+			String domainName = subscription.domainNames.get(host.getName());
+			if (domainName != null) {
+				subscription.send("unhealthy " + domainName + " " + port);
+			}
+		}
+	}
+
+	public void shutdown() {
+		scheduler.shutdown();
+		subscriptions.forEach(this::close);
+		readers.shutdown();
+	}
+
+	/**
+	 * Subscriptions to a host.
+	 */
+	private static final class Subscribers {
+
+		private final Host host;
+		private final Set<Subscription> subscriptions;
+
+		private Subscribers(Host host) {
+			this.host = host;
+			subscriptions = new CopyOnWriteArraySet<>();
+		}
+
+	}
+
+	private final class Subscription {
+
+		private final Socket socket;
+		private final BlockingQueue<String> lines;
+
+		// domain names as given by the client, by host name
+		private final Map<String, String> domainNames;
+
+		private Subscription(Socket socket) {
+			this.socket = socket;
+			lines = new LinkedBlockingQueue<>(MAX_PENDING_LINES);
+			domainNames = new ConcurrentHashMap<>();
+		}
+
+		/**
+		 * Queue a line without blocking. A client that falls this far behind is disconnected.
+		 */
+		private void send(String line) {
+			if (!lines.offer(line)) {
+				LOGGER.warn("Closing subscription of {} that stopped reading",
+					socket.getRemoteSocketAddress());
+				close(this);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,261 @@
+package com.bradchen.jwormhole.server;
+
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.io.output.ProxyOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count the bytes each host receives and sends, and shape what it sends to clients. A host can be
+ * given its own bandwidth; the bandwidth of the node is split evenly across the hosts that are
+ * sending responses at the time, so that one large download cannot starve the other tunnels.
+ * Bandwidths are in bytes per second; 0 means unlimited.
+ */
+public class TrafficManager implements HostListener, SettingsListener {
+
+	// largest write made at once, so that shaped responses are sent in small steps
+	private static final int CHUNK_SIZE = 16 * 1024;
+
+	// burst allowed after an idle period, as time at the full rate
+	private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final Map<String, HostTraffic> traffic;
+	private final AtomicInteger activeHosts;
+	private volatile long nodeBandwidth;
+	private volatile long defaultHostBandwidth;
+	private int settingsNodeBandwidth;
+
+	public TrafficManager(Settings settings) {
+		traffic = new ConcurrentHashMap<>();
+		activeHosts = new AtomicInteger();
+		settingsNodeBandwidth = settings.getNodeBandwidth();
+		nodeBandwidth = settings.getNodeBandwidth() * 1024L;
+		defaultHostBandwidth = settings.getHostBandwidth() * 1024L;
+	}
+
+	/**
+	 * A node bandwidth set through the controller is only replaced if the nodeBandwidth setting
+	 * itself changed; bandwidths of single hosts are kept.
+	 */
+	@Override
+	public synchronized void applySettings(Settings settings) {
+		if (settings.getNodeBandwidth() != settingsNodeBandwidth) {
+			settingsNodeBandwidth = settings.getNodeBandwidth();
+			nodeBandwidth = settingsNodeBandwidth * 1024L;
+		}
+		defaultHostBandwidth = settings.getHostBandwidth() * 1024L;
+	}
+
+	/**
+	 * @return traffic of a host, or null if the host has been removed
+	 */
+	public HostTraffic findTraffic(Host host) {
+		return traffic.get(host.getName());
+	}
+
+	public long getNodeBandwidth() {
+		return nodeBandwidth;
+	}
+
+	public void setNodeBandwidth(long bandwidth) {
+		nodeBandwidth = bandwidth;
+	}
+
+	/**
+	 * Count the request body bytes read from a client.
+	 */
+	public InputStream meterRequest(Host host, InputStream inputStream) {
+		HostTraffic hostTraffic = findTraffic(host);
+		if (hostTraffic == null) {
+			return inputStream;
+		}
+		return new ProxyInputStream(inputStream) {
+			@Override
+			protected void afterRead(int n) {
+				if (n > 0) {
+					hostTraffic.bytesIn.add(n);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Count and shape the response bytes written to a client. The host counts as sending until the
+	 * returned stream is closed.
+	 */
+	public OutputStream meterResponse(Host host, OutputStream outputStream) {
+		HostTraffic hostTraffic = findTraffic(host);
+		if (hostTraffic == null) {
+			return outputStream;
+		}
+		return new ShapedOutputStream(hostTraffic, outputStream);
+	}
+
+	/**
+	 * Bandwidth that a host may use right now.
+	 */
+	private long getBandwidth(HostTraffic hostTraffic) {
+		long hostBandwidth = (hostTraffic.bandwidth >= 0) ? hostTraffic.bandwidth
+			: defaultHostBandwidth;
+		long node = nodeBandwidth;
+		if (node == 0) {
+			return hostBandwidth;
+		}
+		long share = Math.max(1, node / Math.max(1, activeHosts.get()));
+		return (hostBandwidth == 0) ? share : Math.min(hostBandwidth, share);
+	}
+
+	@Override
+	public void hostCreated(Host host) {
+		traffic.put(host.getName(), new HostTraffic());
+	}
+
+	@Override
+	public void hostRemoved(Host host, boolean expired) {
+		traffic.remove(host.getName());
+	}
+
+	/**
+	 * Traffic counters and shaping state of a host.
+	 */
+	public final class HostTraffic {
+
+		private final LongAdder bytesIn;
+		private final LongAdder bytesOut;
+		private final AtomicInteger activeResponses;
+
+		// -1 means the default host bandwidth
+		private volatile long bandwidth;
+
+		// token bucket; tokens go negative while a writer waits for the bytes it has reserved
+		private long tokens;
+		private long lastRefill;
+
+		private HostTraffic() {
+			bytesIn = new LongAdder();
+			bytesOut = new LongAdder();
+			activeResponses = new AtomicInteger();
+			bandwidth = -1;
+			lastRefill = System.nanoTime();
+		}
+
+		public long getBytesIn() {
+			return bytesIn.sum();
+		}
+
+		public long getBytesOut() {
+			return bytesOut.sum();
+		}
+
+		/**
+		 * @param bandwidth bytes per second, 0 for unlimited or -1 for the default host bandwidth
+		 */
+		public void setBandwidth(long bandwidth) {
+			this.bandwidth = bandwidth;
+		}
+
+		private void startResponse() {
+			if (activeResponses.getAndIncrement() == 0) {
+				activeHosts.incrementAndGet();
+			}
+		}
+
+		private void endResponse() {
+			if (activeResponses.decrementAndGet() == 0) {
+				activeHosts.decrementAndGet();
+			}
+		}
+
+		/**
+		 * Take tokens for bytes about to be sent.
+		 *
+		 * @return nanoseconds to wait before sending them
+		 */
+		private synchronized long reserve(int bytes, long rate) {
+			long now = System.nanoTime();
+			long capacity = Math.max(CHUNK_SIZE, rate * BURST_NANOS / TimeUnit.SECONDS.toNanos(1));
+			// an idle host would refill past capacity anyway; clamping keeps the product in range
+			long elapsed = Math.min(now - lastRefill,
+				(long) Math.ceil(capacity * (double) TimeUnit.SECONDS.toNanos(1) / rate));
+			long refill = (long) (elapsed * (double) rate / TimeUnit.SECONDS.toNanos(1));
+			if (refill > 0) {
+				tokens = Math.min(capacity, tokens + refill);
+				lastRefill = now;
+			}
+			tokens -= bytes;
+			return (tokens >= 0) ? 0 : -tokens * TimeUnit.SECONDS.toNanos(1) / rate;
+		}
+
+		private void acquire(int bytes) throws IOException {
+			long rate = getBandwidth(this);
+			if (rate == 0) {
+				return;
+			}
+			long wait = reserve(bytes, rate);
+			if (wait > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException exception) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+		}
+
+	}
+
+	private static final class ShapedOutputStream extends ProxyOutputStream {
+
+		private final HostTraffic hostTraffic;
+		private boolean closed;
+
+		private ShapedOutputStream(HostTraffic hostTraffic, OutputStream outputStream) {
+			super(outputStream);
+			this.hostTraffic = hostTraffic;
+			hostTraffic.startResponse();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			hostTraffic.acquire(1);
+			super.write(b);
+			hostTraffic.bytesOut.increment();
+		}
+
+		@Override
+		public void write(byte[] bytes) throws IOException {
+			write(bytes, 0, bytes.length);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			while (length > 0) {
+				int chunk = Math.min(length, CHUNK_SIZE);
+				hostTraffic.acquire(chunk);
+				super.write(bytes, offset, chunk);
+				hostTraffic.bytesOut.add(chunk);
+				offset += chunk;
+				length -= chunk;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				hostTraffic.endResponse();
+			}
+			super.close();
+		}
+
+	}
+
+}
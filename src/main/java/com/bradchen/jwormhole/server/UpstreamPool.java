@@ -0,0 +1,140 @@
+package com.bradchen.jwormhole.server;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Set of upstream ports (tunnels) of a host that has more than one. Requests go to the port with
+ * the fewest outstanding requests; ports that fail are ejected for a while, and ports that are
+ * draining get no new requests.
+ */
+public final class UpstreamPool {
+
+	private final List<Upstream> upstreams;
+
+	public UpstreamPool(int primaryPort) {
+		upstreams = new CopyOnWriteArrayList<>();
+		upstreams.add(new Upstream(primaryPort));
+	}
+
+	public void addPort(int port) {
+		upstreams.add(new Upstream(port));
+	}
+
+	public boolean removePort(int port) {
+		return upstreams.removeIf(upstream -> upstream.port == port);
+	}
+
+	/**
+	 * @return upstream of a port, or null if the port is not in the pool
+	 */
+	public Upstream getUpstream(int port) {
+		for (Upstream upstream : upstreams) {
+			if (upstream.port == port) {
+				return upstream;
+			}
+		}
+		return null;
+	}
+
+	public int[] getPorts() {
+		return upstreams.stream().mapToInt(Upstream::getPort).toArray();
+	}
+
+	/**
+	 * Pick the upstream to send a request to.
+	 *
+	 * @param preferredPort port to stick to if it is still healthy; 0 if none
+	 * @return selected upstream, or null if every port is draining
+	 */
+	public Upstream select(int preferredPort) {
+		long now = System.currentTimeMillis();
+		Upstream[] candidates = upstreams.toArray(new Upstream[0]);
+		if (preferredPort != 0) {
+			for (Upstream upstream : candidates) {
+				if ((upstream.port == preferredPort) && !upstream.draining &&
+						!upstream.isEjected(now)) {
+					return upstream;
+				}
+			}
+		}
+
+		// start at a random offset so that ties do not all go to the first port
+		int offset = ThreadLocalRandom.current().nextInt(candidates.length);
+		Upstream selected = null;
+		Upstream fallback = null;
+		for (int i = 0; i < candidates.length; i++) {
+			Upstream upstream = candidates[(offset + i) % candidates.length];
+			if (upstream.draining) {
+				continue;
+			}
+			if (upstream.isEjected(now)) {
+				// if every port is ejected, use the one that has been ejected the longest
+				if ((fallback == null) || (upstream.ejectedUntil < fallback.ejectedUntil)) {
+					fallback = upstream;
+				}
+				continue;
+			}
+			if ((selected == null) ||
+					(upstream.outstanding.get() < selected.outstanding.get())) {
+				selected = upstream;
+			}
+		}
+		return (selected == null) ? fallback : selected;
+	}
+
+	/**
+	 * One upstream port of a host.
+	 */
+	public static final class Upstream {
+
+		private final int port;
+		private final AtomicInteger outstanding;
+		private volatile long ejectedUntil;
+		private volatile boolean draining;
+
+		private Upstream(int port) {
+			this.port = port;
+			outstanding = new AtomicInteger();
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public int getOutstanding() {
+			return outstanding.get();
+		}
+
+		public void acquire() {
+			outstanding.incrementAndGet();
+		}
+
+		public void release() {
+			outstanding.decrementAndGet();
+		}
+
+		public boolean isEjected(long now) {
+			return now < ejectedUntil;
+		}
+
+		public void eject(long duration) {
+			ejectedUntil = System.currentTimeMillis() + duration;
+		}
+
+		/**
+		 * Stop sending new requests to the port; outstanding ones carry on.
+		 */
+		public void drain() {
+			draining = true;
+		}
+
+		public boolean isDraining() {
+			return draining;
+		}
+
+	}
+
+}
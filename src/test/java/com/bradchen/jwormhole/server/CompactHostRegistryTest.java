@@ -0,0 +1,162 @@
+package com.bradchen.jwormhole.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Runs the same random operations against {@link CompactHostRegistry} and {@link MapHostRegistry}
+ * and checks that they agree. Names are drawn from a small pool so that they are often removed and
+ * added again; the pool includes names whose hashes collide and names too long to be kept inline.
+ */
+public class CompactHostRegistryTest {
+
+	private static final long SHORT_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
+	private static final long LONG_TIMEOUT = TimeUnit.HOURS.toMillis(1);
+
+	// the compact registry keeps times in whole seconds, so a short timeout may run up to a second
+	// longer there
+	private static final long EXPIRY_WAIT = 2 * SHORT_TIMEOUT + 100;
+
+	private static final int ROUNDS = 3;
+	private static final int OPERATIONS_PER_ROUND = 20000;
+
+	@Test
+	public void matchesMapRegistryOnHeap() throws InterruptedException {
+		checkAgainstMapRegistry(false, 1);
+	}
+
+	@Test
+	public void matchesMapRegistryOffHeap() throws InterruptedException {
+		checkAgainstMapRegistry(true, 2);
+	}
+
+	private static void checkAgainstMapRegistry(boolean offHeap, long seed)
+			throws InterruptedException {
+		Random random = new Random(seed);
+		List<String> names = createNames(random);
+		HostRegistry expected = new MapHostRegistry();
+		// starts at the minimum capacity, so that the table grows along the way
+		HostRegistry actual = new CompactHostRegistry(1, offHeap);
+		Map<String, Host> expectedHosts = new HashMap<>();
+		Map<String, Host> actualHosts = new HashMap<>();
+		Map<String, Host[]> replacedHosts = new HashMap<>();
+		int port = 1;
+
+		for (int round = 0; round < ROUNDS; round++) {
+			for (int i = 0; i < OPERATIONS_PER_ROUND; i++) {
+				String name = names.get(random.nextInt(names.size()));
+				int operation = random.nextInt(10);
+				if (operation < 4) {
+					if (!expected.contains(name)) {
+						long timeout = random.nextBoolean() ? SHORT_TIMEOUT : LONG_TIMEOUT;
+						// a new port for every host, so that a replaced host never looks current
+						port = (port % 65535) + 1;
+						expectedHosts.put(name, expected.add(name, port, timeout));
+						actualHosts.put(name, actual.add(name, port, timeout));
+					}
+				} else if (operation < 7) {
+					if (expectedHosts.containsKey(name)) {
+						boolean removed = expected.remove(expectedHosts.get(name));
+						assertEquals(removed, actual.remove(actualHosts.get(name)));
+						if (removed) {
+							replacedHosts.put(name, new Host[] {
+								expectedHosts.get(name), actualHosts.get(name)
+							});
+						}
+					}
+				} else if (operation < 8) {
+					// a host that was removed must not take its successor with it
+					Host[] replaced = replacedHosts.get(name);
+					if (replaced != null) {
+						assertEquals(expected.remove(replaced[0]), actual.remove(replaced[1]));
+					}
+				} else if (operation < 9) {
+					assertEquals(expected.keepAlive(name), actual.keepAlive(name));
+				} else {
+					assertSameHost(expected.get(name), actual.get(name));
+					assertEquals(expected.contains(name), actual.contains(name));
+				}
+				assertEquals(expected.size(), actual.size());
+			}
+			assertSameHosts(expected, actual, names);
+
+			Thread.sleep(EXPIRY_WAIT);
+			Set<String> retainedNames = new HashSet<>();
+			for (String name : names) {
+				if (random.nextInt(4) == 0) {
+					retainedNames.add(name);
+				}
+			}
+			Set<String> expectedRemoved = new TreeSet<>();
+			Set<String> actualRemoved = new TreeSet<>();
+			expected.removeExpired(host -> retainedNames.contains(host.getName()),
+				host -> expectedRemoved.add(host.getName()));
+			actual.removeExpired(host -> retainedNames.contains(host.getName()),
+				host -> actualRemoved.add(host.getName()));
+			assertEquals(expectedRemoved, actualRemoved);
+			assertSameHosts(expected, actual, names);
+		}
+	}
+
+	/**
+	 * Random names of 1 to 20 characters, plus names made of "Aa" and "BB" blocks, which all share
+	 * the same hash code for a given number of blocks.
+	 */
+	private static List<String> createNames(Random random) {
+		Set<String> names = new HashSet<>();
+		char[] alphabet = "0123456789abcdefghijklmnopqrstuvwxyz-_.".toCharArray();
+		while (names.size() < 1500) {
+			char[] name = new char[1 + random.nextInt(20)];
+			for (int i = 0; i < name.length; i++) {
+				name[i] = alphabet[random.nextInt(alphabet.length)];
+			}
+			names.add(new String(name));
+		}
+		for (int blocks = 3; blocks <= 8; blocks++) {
+			for (int bits = 0; bits < (1 << blocks); bits++) {
+				StringBuilder name = new StringBuilder();
+				for (int i = 0; i < blocks; i++) {
+					name.append(((bits >>> i) & 1) == 0 ? "Aa" : "BB");
+				}
+				names.add(name.toString());
+			}
+		}
+		return new ArrayList<>(names);
+	}
+
+	private static void assertSameHosts(HostRegistry expected, HostRegistry actual,
+										List<String> names) {
+		assertEquals(expected.size(), actual.size());
+		Map<String, Host> expectedHosts = expected.getHosts();
+		Map<String, Host> actualHosts = actual.getHosts();
+		assertEquals(new TreeSet<>(expectedHosts.keySet()), new TreeSet<>(actualHosts.keySet()));
+		for (String name : names) {
+			assertSameHost(expectedHosts.get(name), actualHosts.get(name));
+			assertSameHost(expected.get(name), actual.get(name));
+		}
+	}
+
+	private static void assertSameHost(Host expected, Host actual) {
+		if (expected == null) {
+			assertNull(actual);
+			return;
+		}
+		assertNotNull(expected.getName(), actual);
+		assertEquals(expected.getName(), actual.getName());
+		assertEquals(expected.getPort(), actual.getPort());
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.bradchen.jwormhole.server;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HostNameAllocatorTest {
+
+	private static final String ALPHABET = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+	// a name is found in a few walks along the cycle; a runaway walk shows up as a timeout
+	@Test(timeout = 10000)
+	public void nextHandsOutEveryNameOncePerCycle() {
+		for (int length = 1; length <= 3; length++) {
+			HostNameAllocator allocator = new HostNameAllocator(length);
+			int size = nameSpaceSize(length);
+			for (int cycle = 0; cycle < 2; cycle++) {
+				Set<String> names = new HashSet<>();
+				for (int i = 0; i < size; i++) {
+					String name = allocator.next();
+					assertValidName(name, length);
+					assertTrue("Repeated within a cycle: " + name, names.add(name));
+				}
+				assertEquals(size, names.size());
+			}
+		}
+	}
+
+	@Test
+	public void reservedNamesAreNotHandedOutByNext() {
+		for (int length = 1; length <= 3; length++) {
+			HostNameAllocator allocator = new HostNameAllocator(length);
+			int size = nameSpaceSize(length);
+			Set<String> names = new HashSet<>();
+			int taken = 0;
+			while (taken < size) {
+				if ((taken % 3) == 0) {
+					List<String> reserved = allocator.reserve(Math.min(size - taken, 1 + taken % 7));
+					for (String name : reserved) {
+						assertValidName(name, length);
+						assertTrue("Reserved twice: " + name, names.add(name));
+					}
+					taken += reserved.size();
+				} else {
+					String name = allocator.next();
+					assertValidName(name, length);
+					assertTrue("Already reserved or handed out: " + name, names.add(name));
+					taken++;
+				}
+			}
+			assertEquals(size, names.size());
+		}
+	}
+
+	@Test
+	public void namesLongerThanThePermutationStillWork() {
+		for (int length : new int[] {12, 13, 20}) {
+			HostNameAllocator allocator = new HostNameAllocator(length);
+			Set<String> prefixes = new HashSet<>();
+			for (int i = 0; i < 10000; i++) {
+				String name = allocator.next();
+				assertValidName(name, length);
+				// the first 12 characters come from the permutation and do not repeat either
+				assertTrue("Repeated: " + name, prefixes.add(name.substring(0, 12)));
+			}
+		}
+	}
+
+	private static int nameSpaceSize(int length) {
+		int size = 1;
+		for (int i = 0; i < length; i++) {
+			size *= ALPHABET.length();
+		}
+		return size;
+	}
+
+	private static void assertValidName(String name, int length) {
+		assertEquals(length, name.length());
+		for (int i = 0; i < name.length(); i++) {
+			assertTrue("Invalid character in " + name, ALPHABET.indexOf(name.charAt(i)) >= 0);
+		}
+	}
+
+}